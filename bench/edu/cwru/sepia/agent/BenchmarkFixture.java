@@ -0,0 +1,128 @@
+package edu.cwru.sepia.agent;
+
+import edu.cwru.sepia.action.Action;
+import edu.cwru.sepia.action.ActionFeedback;
+import edu.cwru.sepia.action.ActionResult;
+import edu.cwru.sepia.environment.model.history.History;
+import edu.cwru.sepia.environment.model.state.PlayerState;
+import edu.cwru.sepia.environment.model.state.State;
+import edu.cwru.sepia.environment.model.state.Unit;
+import edu.cwru.sepia.environment.model.state.UnitTemplate;
+
+/**
+ * Synthetic footman battle used by the benchmarks. Mirrors the layout of the shipped rl_NfvNf maps:
+ * our footmen (player 0, ids 0..n-1) in columns on the left, the enemy (player 1, ids n..2n-1) on the
+ * right, both using the footman templates from those maps. The history holds one turn of fighting,
+ * where every footman in the front columns hit the unit across from it, so the agent sees an event.
+ * A quiet fixture instead holds a turn on which every footman is still marching towards its target.
+ */
+final class BenchmarkFixture {
+
+	// template ids used by the shipped maps
+	private static final int OUR_TEMPLATE = 25;
+	private static final int ENEMY_TEMPLATE = 58;
+	private static final int ROWS = 16;
+
+	final int footmenPerSide;
+	final State.StateView stateView;
+	final History.HistoryView historyView;
+
+	/**
+	 * @param footmenPerSide Number of footmen for each player
+	 * @param turnNumber The turn the fixture is at. Must be at least 1.
+	 */
+	BenchmarkFixture(int footmenPerSide, int turnNumber) {
+		this(footmenPerSide, turnNumber, false);
+	}
+
+	/**
+	 * @param footmenPerSide Number of footmen for each player
+	 * @param turnNumber The turn the fixture is at. Must be at least 1.
+	 * @param quiet Whether the last turn had no fighting, only attacks still under way
+	 */
+	BenchmarkFixture(int footmenPerSide, int turnNumber, boolean quiet) {
+		this.footmenPerSide = footmenPerSide;
+		int columns = (footmenPerSide + ROWS - 1) / ROWS;
+
+		int xExtent = Math.max(25, 4 * columns + 16);
+		int yExtent = Math.max(19, 2 * ROWS + 3);
+		State.StateBuilder builder = new State.StateBuilder();
+		builder.setSize(xExtent, yExtent);
+		builder.setTurn(turnNumber - 1);
+		builder.addPlayer(player(0, xExtent, yExtent));
+		builder.addPlayer(player(1, xExtent, yExtent));
+		UnitTemplate ours = footmanTemplate(OUR_TEMPLATE, 0, 3);
+		UnitTemplate theirs = footmanTemplate(ENEMY_TEMPLATE, 1, 4);
+		builder.addTemplate(ours);
+		builder.addTemplate(theirs);
+
+		Unit[] ourUnits = new Unit[footmenPerSide];
+		Unit[] enemyUnits = new Unit[footmenPerSide];
+		int left = 6;
+		int right = left + 2 * columns + 4;
+		for (int i = 0; i < footmenPerSide; i++) {
+			int column = i / ROWS;
+			int row = 2 + 2 * (i % ROWS);
+			ourUnits[i] = footman(ours, i, 60 - i % 7);
+			enemyUnits[i] = footman(theirs, footmenPerSide + i, 60 - i % 5);
+			builder.addUnit(ourUnits[i], left + 2 * (columns - 1 - column), row);
+			builder.addUnit(enemyUnits[i], right + 2 * column, row);
+		}
+		State state = builder.build();
+
+		History history = new History();
+		history.addPlayer(0);
+		history.addPlayer(1);
+		for (int i = 0; quiet && i < footmenPerSide; i++) {
+			history.recordCommandFeedback(0, turnNumber - 1, new ActionResult(
+					Action.createCompoundAttack(ourUnits[i].ID, enemyUnits[i].ID), ActionFeedback.INCOMPLETE));
+		}
+		for (int i = 0; !quiet && i < Math.min(ROWS, footmenPerSide); i++) {
+			history.recordDamage(ourUnits[i], enemyUnits[i], 5, state);
+			history.recordDamage(enemyUnits[i], ourUnits[i], 6, state);
+			history.recordCommandRecieved(0, turnNumber - 1, ourUnits[i].ID,
+					Action.createCompoundAttack(ourUnits[i].ID, enemyUnits[i].ID));
+		}
+		state.incrementTurn();
+
+		this.stateView = state.getView(0);
+		this.historyView = history.getView(0);
+	}
+
+	int ourId(int i) {
+		return i;
+	}
+
+	int enemyId(int i) {
+		return footmenPerSide + i;
+	}
+
+	private static PlayerState player(int id, int xExtent, int yExtent) {
+		PlayerState player = new PlayerState(id);
+		player.setVisibilityMatrix(new int[xExtent][yExtent]);
+		return player;
+	}
+
+	private static UnitTemplate footmanTemplate(int id, int player, int piercingAttack) {
+		UnitTemplate template = new UnitTemplate(id);
+		template.setName("Footman");
+		template.setPlayer(player);
+		template.setBaseHealth(60);
+		template.setBasicAttack(6);
+		template.setPiercingAttack(piercingAttack);
+		template.setRange(1);
+		template.setArmor(2);
+		template.setSightRange(4);
+		template.setCanMove(true);
+		template.setCharacter('f');
+		template.setDurationMove(1);
+		template.setDurationAttack(1);
+		return template;
+	}
+
+	private static Unit footman(UnitTemplate template, int id, int hp) {
+		Unit unit = new Unit(template, id);
+		unit.setHP(hp);
+		return unit;
+	}
+}
@@ -0,0 +1,142 @@
+package edu.cwru.sepia.agent;
+
+import java.io.File;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+import javax.xml.bind.JAXBException;
+
+import edu.cwru.sepia.environment.model.state.StateCreator;
+
+/**
+ * Measures how many training episodes RLAgent needs to reach a target test reward, to compare
+ * learning rules such as TD(lambda) against the one step update.
+ *
+ * For every map, learner setting and seed the agent starts from random weights drawn from the seed
+ * and trains in a CombatSimulator, playing its usual round of 5 test episodes after every 10 training
+ * episodes. A run reaches the target once the mean of its last WINDOW test rounds is at least the
+ * target reward; the number of training episodes played by then is reported. Runs that never get
+ * there count as maxEpisodes.
+ *
+ * Usage: java -cp lib/SEPIA.jar:bin edu.cwru.sepia.agent.ConvergenceBenchmark [-maps=a.xml,b.xml]
+ * [-targets=R,R] [-settings=lambda=0,lambda=0.5] [-seeds=N] [-maxEpisodes=N]
+ * Settings are RLAgent options, several joined by +, e.g. lambda=0.5+batchSize=4.
+ * Defaults to the 5fv5f and 10fv10f maps with targets 200 and 400, and lambda 0, 0.5 and 0.9 over 8
+ * seeds.
+ */
+public class ConvergenceBenchmark {
+
+	// test rounds averaged when checking for the target
+	private static final int WINDOW = 3;
+	private static final int MAX_TURNS = 100000;
+
+	public static void main(String[] args) throws JAXBException {
+		String[] maps = { "data/rl_5fv5f.xml", "data/rl_10fv10f.xml" };
+		double[] targets = { 200, 400 };
+		String[] settings = { "lambda=0", "lambda=0.5", "lambda=0.9" };
+		int seeds = 8;
+		int maxEpisodes = 3000;
+		for (String arg : args) {
+			String value = arg.substring(arg.indexOf('=') + 1);
+			if (arg.startsWith("-maps=")) {
+				maps = value.split(",");
+			} else if (arg.startsWith("-targets=")) {
+				String[] fields = value.split(",");
+				targets = new double[fields.length];
+				for (int i = 0; i < fields.length; i++) {
+					targets[i] = Double.parseDouble(fields[i]);
+				}
+			} else if (arg.startsWith("-settings=")) {
+				settings = value.split(",");
+			} else if (arg.startsWith("-seeds=")) {
+				seeds = Integer.parseInt(value);
+			} else if (arg.startsWith("-maxEpisodes=")) {
+				maxEpisodes = Integer.parseInt(value) / 10 * 10;
+			} else {
+				throw new IllegalArgumentException("Unknown argument " + arg);
+			}
+		}
+		if (targets.length != maps.length) {
+			throw new IllegalArgumentException("Give one target per map");
+		}
+
+		System.out.println(String.format(Locale.ROOT, "%-22s %-24s %8s %10s %10s %8s %10s",
+				"Map", "Setting", "Target", "Mean", "Median", "Reached", "Episodes/s"));
+		for (int m = 0; m < maps.length; m++) {
+			StateCreator stateCreator = ScenarioGenerator.stateCreator(maps[m]);
+			for (String setting : settings) {
+				int[] episodes = new int[seeds];
+				int reached = 0;
+				long played = 0;
+				long start = System.nanoTime();
+				for (int seed = 0; seed < seeds; seed++) {
+					episodes[seed] = episodesToTarget(stateCreator, setting, seed, targets[m], maxEpisodes);
+					if (episodes[seed] < maxEpisodes) {
+						reached++;
+					}
+					played += episodes[seed] * 3 / 2;
+				}
+				double seconds = (System.nanoTime() - start) / 1e9;
+				Arrays.sort(episodes);
+				double mean = 0;
+				for (int count : episodes) {
+					mean += count;
+				}
+				System.out.println(String.format(Locale.ROOT, "%-22s %-24s %8.1f %10.1f %10d %5d/%-2d %10.1f",
+						new File(maps[m]).getName(), setting, targets[m], mean / seeds, episodes[seeds / 2],
+						reached, seeds, played / seconds));
+			}
+		}
+	}
+
+	// Trains one agent until its test reward reaches the target, returning the training episodes played
+	private static int episodesToTarget(StateCreator stateCreator, String setting, long seed, double target,
+			int maxEpisodes) {
+		String[] options = setting.split("\\+");
+		String[] args = new String[options.length + 2];
+		args[0] = Integer.toString(maxEpisodes);
+		args[1] = "false";
+		System.arraycopy(options, 0, args, 2, options.length);
+
+		PrintStream out = System.out;
+		// the agent reports every episode, which would drown the results
+		System.setOut(new PrintStream(new OutputStream() {
+			@Override
+			public void write(int b) {
+			}
+		}));
+		try {
+			RLAgent primary = new RLAgent(0, args);
+			primary.randomizeWeights(new Random(seed));
+			RLAgent agent = new RLAgent(primary, maxEpisodes, seed, false);
+			CombatSimulator simulator = new CombatSimulator(stateCreator, agent.getPlayerNumber(), seed, MAX_TURNS);
+			List<Double> testRewards = agent.testRewards();
+			while (!agent.isFinished()) {
+				int rounds = testRewards.size();
+				simulator.runEpisode(agent);
+				if (testRewards.size() > rounds && reached(testRewards, target)) {
+					// the round recorded after training episode 10 * rounds
+					return 10 * testRewards.size();
+				}
+			}
+			return maxEpisodes;
+		} finally {
+			System.setOut(out);
+		}
+	}
+
+	private static boolean reached(List<Double> testRewards, double target) {
+		if (testRewards.size() < WINDOW) {
+			return false;
+		}
+		double sum = 0;
+		for (int i = testRewards.size() - WINDOW; i < testRewards.size(); i++) {
+			sum += testRewards.get(i);
+		}
+		return sum / WINDOW >= target;
+	}
+}
@@ -0,0 +1,206 @@
+package edu.cwru.sepia.agent;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * JMH benchmarks for RLAgent's decision and learning hot paths.
+ *
+ * Every benchmark runs against synthetic fixtures (see BenchmarkFixture) with size footmen per side.
+ * Two fixtures at consecutive turns are alternated so the per-turn caches are rebuilt on every call,
+ * as they would be in a game. Run with -prof gc for the bytes allocated per operation
+ * (gc.alloc.rate.norm).
+ *
+ * The historyLogs benchmark only reads the previous turn's logs the way the agent does. SEPIA's
+ * history getters allocate the views they return, so its allocation is the floor for a turn, and
+ * anything middleStep allocates beyond it is the agent's own. The JIT removes more of those views from
+ * the small historyLogs benchmark than from a whole turn, so compare the two with
+ * -jvmArgsAppend -XX:-DoEscapeAnalysis.
+ *
+ * Usage: mvn test-compile exec:exec -Djmh.args="AgentBenchmark -prof gc"
+ * Sizes default to 5 10 100 footmen per side, pick others with -p size=N.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AgentBenchmark {
+
+	// enemies scored per decision by the nearestEnemies variants
+	private static final int NEAREST = 8;
+
+	/**
+	 * The fixtures and an agent with the default settings.
+	 */
+	@State(Scope.Thread)
+	public static class Turns {
+		@Param({ "5", "10", "100" })
+		public int size;
+
+		BenchmarkFixture[] turns;
+		// turns without fighting, deaths or finished actions
+		BenchmarkFixture[] quietTurns;
+		RLAgent agent;
+		double[] features;
+		int iteration;
+
+		@Setup
+		public void setUp() {
+			turns = new BenchmarkFixture[] { new BenchmarkFixture(size, 1), new BenchmarkFixture(size, 2) };
+			quietTurns = new BenchmarkFixture[] { new BenchmarkFixture(size, 1, true),
+					new BenchmarkFixture(size, 2, true) };
+			agent = new RLAgent(0, new String[] { "10", "false" });
+			agent.initialStep(turns[0].stateView, turns[0].historyView);
+			features = agent.calculateFeatureVector(turns[0].stateView, turns[0].historyView, turns[0].ourId(0),
+					turns[0].enemyId(0));
+		}
+
+		// The next call's turn, alternating every call
+		BenchmarkFixture next() {
+			return turns[iteration++ & 1];
+		}
+
+		// The next call's turn, alternating once every size calls so a turn's caches serve a whole army
+		BenchmarkFixture nextArmy() {
+			return turns[(iteration++ / size) & 1];
+		}
+	}
+
+	/**
+	 * An agent scoring only the nearest enemies through the spatial index.
+	 */
+	@State(Scope.Thread)
+	public static class Nearby {
+		RLAgent agent;
+
+		@Setup
+		public void setUp(Turns turns) {
+			agent = new RLAgent(0, new String[] { "10", "false", "nearestEnemies=" + NEAREST });
+			agent.initialStep(turns.turns[0].stateView, turns.turns[0].historyView);
+		}
+	}
+
+	/**
+	 * An agent with tile coded Q-values, whose cost should not depend on the number of tile weights.
+	 */
+	@State(Scope.Thread)
+	public static class Tiled {
+		@Param({ "4096", "1048576" })
+		public int dimension;
+
+		RLAgent agent;
+
+		@Setup
+		public void setUp(Turns turns) {
+			agent = new RLAgent(0, new String[] { "10", "false", "tiles=" + dimension });
+			agent.initialStep(turns.turns[0].stateView, turns.turns[0].historyView);
+		}
+	}
+
+	@Benchmark
+	public double historyLogs(Turns t) {
+		BenchmarkFixture turn = t.next();
+		int lastTurn = turn.stateView.getTurnNumber() - 1;
+		double count = 0;
+		for (Integer unitId : turn.historyView.getCommandsIssued(0, lastTurn).keySet()) {
+			count += unitId;
+		}
+		count += turn.historyView.getDamageLogs(lastTurn).size();
+		count += turn.historyView.getDeathLogs(lastTurn).size();
+		Map<Integer, ?> feedback = turn.historyView.getCommandFeedback(0, lastTurn);
+		for (Integer unitId : feedback.keySet()) {
+			count += feedback.get(unitId) == null ? 0 : 1;
+		}
+		return count;
+	}
+
+	@Benchmark
+	public int middleStep(Turns t) {
+		BenchmarkFixture turn = t.next();
+		return t.agent.middleStep(turn.stateView, turn.historyView).size();
+	}
+
+	@Benchmark
+	public int middleStepQuiet(Turns t) {
+		BenchmarkFixture turn = t.quietTurns[t.iteration++ & 1];
+		return t.agent.middleStep(turn.stateView, turn.historyView).size();
+	}
+
+	@Benchmark
+	public int selectAction(Turns t) {
+		int i = t.iteration;
+		BenchmarkFixture turn = t.next();
+		return t.agent.selectAction(turn.stateView, turn.historyView, turn.ourId(i % t.size));
+	}
+
+	@Benchmark
+	public double calcQValue(Turns t) {
+		int i = t.iteration;
+		BenchmarkFixture turn = t.nextArmy();
+		return t.agent.calcQValue(turn.stateView, turn.historyView, turn.ourId(i % t.size),
+				turn.enemyId((i / 7) % t.size));
+	}
+
+	@Benchmark
+	public double calculateFeatureVector(Turns t) {
+		int i = t.iteration;
+		BenchmarkFixture turn = t.nextArmy();
+		return t.agent.calculateFeatureVector(turn.stateView, turn.historyView, turn.ourId(i % t.size),
+				turn.enemyId((i / 7) % t.size))[0];
+	}
+
+	@Benchmark
+	public double calculateReward(Turns t) {
+		int i = t.iteration;
+		BenchmarkFixture turn = t.nextArmy();
+		return t.agent.calculateReward(turn.stateView, turn.historyView, turn.ourId(i % t.size));
+	}
+
+	@Benchmark
+	public double updateWeights(Turns t) {
+		BenchmarkFixture turn = t.next();
+		return t.agent.updateWeights(t.agent.weights, t.features, -1.0, turn.stateView, turn.historyView,
+				turn.ourId(0))[0];
+	}
+
+	@Benchmark
+	public int middleStepNearest(Turns t, Nearby n) {
+		BenchmarkFixture turn = t.next();
+		return n.agent.middleStep(turn.stateView, turn.historyView).size();
+	}
+
+	@Benchmark
+	public int selectActionNearest(Turns t, Nearby n) {
+		int i = t.iteration;
+		BenchmarkFixture turn = t.next();
+		return n.agent.selectAction(turn.stateView, turn.historyView, turn.ourId(i % t.size));
+	}
+
+	@Benchmark
+	public double calcQValueTiled(Turns t, Tiled tiled) {
+		int i = t.iteration;
+		BenchmarkFixture turn = t.nextArmy();
+		return tiled.agent.calcQValue(turn.stateView, turn.historyView, turn.ourId(i % t.size),
+				turn.enemyId((i / 7) % t.size));
+	}
+
+	@Benchmark
+	public double updateWeightsTiled(Turns t, Tiled tiled) {
+		BenchmarkFixture turn = t.next();
+		return tiled.agent.updateWeights(tiled.agent.weights, t.features, -1.0, turn.stateView,
+				turn.historyView, turn.ourId(0))[0];
+	}
+}
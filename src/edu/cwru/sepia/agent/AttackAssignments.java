@@ -0,0 +1,132 @@
+package edu.cwru.sepia.agent;
+
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * Two way index between our footmen and the enemy footmen they are attacking.
+ *
+ * Footman -> target is a unit id indexed int array, and every live target keeps an attacker count
+ * and a bitset of the footmen attacking it. Lookups, reassignments and removing a dead unit are all
+ * O(1) apart from clearing the attackers of a dead target, which only visits those attackers.
+ */
+final class AttackAssignments implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	private static final int NONE = -1;
+
+	// footman id -> enemy id, NONE if unassigned
+	private int[] targetOf = new int[0];
+	// enemy id -> number of footmen attacking it, NONE if the enemy is not a live target
+	private int[] attackerCount = new int[0];
+	// enemy id -> footmen attacking it
+	private BitSet[] attackersOf = new BitSet[0];
+
+	/**
+	 * Forgets every target and assignment. Called at the start of each episode.
+	 */
+	void clear() {
+		Arrays.fill(targetOf, NONE);
+		Arrays.fill(attackerCount, NONE);
+		for (BitSet attackers : attackersOf) {
+			if (attackers != null) {
+				attackers.clear();
+			}
+		}
+	}
+
+	/**
+	 * Registers a live enemy that footmen can be assigned to.
+	 */
+	void addTarget(int enemyId) {
+		if (enemyId >= attackerCount.length) {
+			int size = Math.max(enemyId + 1, attackerCount.length * 2);
+			int oldSize = attackerCount.length;
+			attackerCount = Arrays.copyOf(attackerCount, size);
+			Arrays.fill(attackerCount, oldSize, size, NONE);
+			attackersOf = Arrays.copyOf(attackersOf, size);
+		}
+		attackerCount[enemyId] = 0;
+		if (attackersOf[enemyId] == null) {
+			attackersOf[enemyId] = new BitSet();
+		} else {
+			attackersOf[enemyId].clear();
+		}
+	}
+
+	boolean isTarget(int enemyId) {
+		return 0 <= enemyId && enemyId < attackerCount.length && attackerCount[enemyId] != NONE;
+	}
+
+	/**
+	 * @return the number of footmen attacking enemyId, or -1 if it is not a live target
+	 */
+	int attackerCount(int enemyId) {
+		return isTarget(enemyId) ? attackerCount[enemyId] : NONE;
+	}
+
+	/**
+	 * @return the enemy footId is attacking, or -1 if it has no target
+	 */
+	int targetOf(int footId) {
+		return 0 <= footId && footId < targetOf.length ? targetOf[footId] : NONE;
+	}
+
+	boolean isAttacking(int footId, int enemyId) {
+		return enemyId != NONE && targetOf(footId) == enemyId;
+	}
+
+	/**
+	 * Assigns footId to enemyId, releasing its previous target.
+	 *
+	 * @return the previous target, or -1 if it had none
+	 */
+	int assign(int footId, int enemyId) {
+		int previous = unassign(footId);
+		if (isTarget(enemyId)) {
+			targetOf[footId] = enemyId;
+			attackerCount[enemyId]++;
+			attackersOf[enemyId].set(footId);
+		}
+		return previous;
+	}
+
+	/**
+	 * Releases footId's target. Called when the footman is reassigned or dies.
+	 *
+	 * @return the released target, or -1 if it had none
+	 */
+	int unassign(int footId) {
+		if (footId >= targetOf.length) {
+			int oldSize = targetOf.length;
+			targetOf = Arrays.copyOf(targetOf, Math.max(footId + 1, oldSize * 2));
+			Arrays.fill(targetOf, oldSize, targetOf.length, NONE);
+		}
+		int previous = targetOf[footId];
+		if (previous != NONE) {
+			targetOf[footId] = NONE;
+			if (isTarget(previous)) {
+				attackerCount[previous]--;
+				attackersOf[previous].clear(footId);
+			}
+		}
+		return previous;
+	}
+
+	/**
+	 * Removes a dead enemy. Every footman that was attacking it is left without a target.
+	 */
+	void removeTarget(int enemyId) {
+		if (!isTarget(enemyId)) {
+			return;
+		}
+		BitSet attackers = attackersOf[enemyId];
+		for (int footId = attackers.nextSetBit(0); footId >= 0; footId = attackers.nextSetBit(footId + 1)) {
+			targetOf[footId] = NONE;
+		}
+		attackers.clear();
+		attackerCount[enemyId] = NONE;
+	}
+}
@@ -0,0 +1,139 @@
+package edu.cwru.sepia.agent;
+
+import java.io.Serializable;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+import edu.cwru.sepia.action.Action;
+
+/**
+ * The compound attacks RLAgent orders on a turn, as a map from footman id to action that is refilled
+ * every turn instead of being allocated again.
+ *
+ * The attack of every (footman, enemy) pair is created once, along with its map entry, and kept in
+ * unit id indexed arrays, so ordering the same attack again allocates nothing. Actions are immutable
+ * and SEPIA's environment and CombatSimulator both copy or consume the orders before the agent's next
+ * turn, so the same objects can be handed out every turn. The agent forgets the cached attacks when a
+ * new episode starts, so they never outgrow the armies of one map.
+ */
+final class AttackOrders extends AbstractMap<Integer, Action> implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	// footman id -> enemy id -> the entry ordering that attack, created on first use
+	private Entry<Integer, Action>[][] attacks = newTables(0);
+	private Entry<Integer, Action>[] orders = newEntries(16);
+	private int size;
+	// view of the orders, created on first use
+	private transient Set<Entry<Integer, Action>> entries;
+
+	/**
+	 * Orders footId to attack enemyId. A footman must be ordered at most once per turn.
+	 */
+	void attack(int footId, int enemyId) {
+		if (footId >= attacks.length) {
+			attacks = Arrays.copyOf(attacks, Math.max(footId + 1, attacks.length * 2));
+		}
+		Entry<Integer, Action>[] targets = attacks[footId];
+		if (targets == null || enemyId >= targets.length) {
+			targets = targets == null ? newEntries(enemyId + 1)
+					: Arrays.copyOf(targets, Math.max(enemyId + 1, targets.length * 2));
+			attacks[footId] = targets;
+		}
+		if (targets[enemyId] == null) {
+			targets[enemyId] = new SimpleImmutableEntry<Integer, Action>(footId,
+					Action.createCompoundAttack(footId, enemyId));
+		}
+		if (size == orders.length) {
+			orders = Arrays.copyOf(orders, size * 2);
+		}
+		orders[size++] = targets[enemyId];
+	}
+
+	/**
+	 * Withdraws every order and forgets every cached attack, ready for a new episode.
+	 */
+	void reset() {
+		clear();
+		attacks = newTables(0);
+	}
+
+	/**
+	 * Withdraws every order, ready for the next turn.
+	 */
+	@Override
+	public void clear() {
+		Arrays.fill(orders, 0, size, null);
+		size = 0;
+	}
+
+	@Override
+	public int size() {
+		return size;
+	}
+
+	@Override
+	public Action get(Object key) {
+		for (int i = 0; i < size; i++) {
+			if (orders[i].getKey().equals(key)) {
+				return orders[i].getValue();
+			}
+		}
+		return null;
+	}
+
+	@Override
+	public boolean containsKey(Object key) {
+		return get(key) != null;
+	}
+
+	@Override
+	public Set<Entry<Integer, Action>> entrySet() {
+		if (entries == null) {
+			entries = new OrderSet();
+		}
+		return entries;
+	}
+
+	private final class OrderSet extends AbstractSet<Entry<Integer, Action>> {
+		@Override
+		public Iterator<Entry<Integer, Action>> iterator() {
+			return new Iterator<Entry<Integer, Action>>() {
+				private int next;
+
+				@Override
+				public boolean hasNext() {
+					return next < size;
+				}
+
+				@Override
+				public Entry<Integer, Action> next() {
+					if (next >= size) {
+						throw new NoSuchElementException();
+					}
+					return orders[next++];
+				}
+			};
+		}
+
+		@Override
+		public int size() {
+			return size;
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private static <T> T[] newEntries(int length) {
+		return (T[]) new Map.Entry<?, ?>[length];
+	}
+
+	@SuppressWarnings("unchecked")
+	private static <T> T[][] newTables(int length) {
+		return (T[][]) new Map.Entry<?, ?>[length][];
+	}
+}
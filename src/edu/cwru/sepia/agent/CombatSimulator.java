@@ -0,0 +1,343 @@
+package edu.cwru.sepia.agent;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Random;
+
+import edu.cwru.sepia.action.Action;
+import edu.cwru.sepia.action.ActionFeedback;
+import edu.cwru.sepia.action.ActionResult;
+import edu.cwru.sepia.action.ActionType;
+import edu.cwru.sepia.action.TargetedAction;
+import edu.cwru.sepia.environment.model.history.History;
+import edu.cwru.sepia.environment.model.state.State;
+import edu.cwru.sepia.environment.model.state.StateCreator;
+import edu.cwru.sepia.environment.model.state.Unit;
+import edu.cwru.sepia.environment.model.state.UnitTemplate;
+import edu.cwru.sepia.util.Direction;
+
+/**
+ * Headless footman battle that plays whole episodes against an agent on the calling thread, without
+ * SEPIA's Environment, its agent threads or BestEffortModel's planner.
+ *
+ * The battle is kept in a real SEPIA State and History, so the agent is handed ordinary StateViews and
+ * HistoryViews and does not know it is being simulated. Units use their map templates for health,
+ * attack, armor, range and sight, and damage is rolled the way BestEffortModel rolls it. Every turn
+ * each unit with a target either hits it once, when in range, or takes one step towards it. The other
+ * player is scripted after combatAgent: an idle footman that sees an enemy attacks the nearest one
+ * three times out of four and a random one otherwise, and keeps that target until it dies.
+ *
+ * Per turn state lives in arrays indexed by unit slot, so a turn allocates little beyond the SEPIA
+ * log entries the agent reads.
+ */
+final class CombatSimulator {
+
+	// chance that an idle scripted footman picks the nearest enemy rather than a random one
+	private static final double NEAREST_TARGET_CHANCE = 0.75;
+	private static final int BLOCKED = -1;
+	private static final int EMPTY = 0;
+
+	private final StateCreator stateCreator;
+	private final int learner;
+	private final int opponent;
+	private final int maxTurns;
+	private final Random random;
+
+	private State state;
+	private History history;
+	private int xExtent;
+
+	// per slot, a dead unit's slot holds null
+	private Unit[] units = new Unit[0];
+	private int[] player = new int[0];
+	private int[] target = new int[0];
+	private Action[] order = new Action[0];
+	private int[] executionOrder = new int[0];
+	private int numUnits;
+	// slot of each unit id, -1 if there is none
+	private int[] slotOf = new int[0];
+	// slot + 1 of the unit on each tile, EMPTY or BLOCKED
+	private int[] occupancy = new int[0];
+	private final int[] alive = new int[2];
+
+	/**
+	 * @param stateCreator Creates the starting state of every episode, usually from the map file
+	 * @param learner Player number of the agent being trained
+	 * @param seed Seed for damage rolls, turn order and the scripted opponent
+	 * @param maxTurns Turns after which an episode ends even if both players have units left
+	 */
+	CombatSimulator(StateCreator stateCreator, int learner, long seed, int maxTurns) {
+		this.stateCreator = stateCreator;
+		this.learner = learner;
+		this.opponent = learner == RLAgent.ENEMY_PLAYERNUM ? 0 : RLAgent.ENEMY_PLAYERNUM;
+		this.maxTurns = maxTurns;
+		this.random = new Random(seed);
+	}
+
+	/**
+	 * Plays one episode. The agent gets initialStep, a middleStep every turn and terminalStep, exactly
+	 * as it would from SEPIA.
+	 */
+	void runEpisode(Agent agent) {
+		reset();
+		Map<Integer, Action> actions = agent.initialStep(state.getView(learner), history.getView(learner));
+		while (true) {
+			issueCommands(actions);
+			issueScriptedCommands();
+			executeTurn();
+			state.incrementTurn();
+			if (isTerminated()) {
+				break;
+			}
+			actions = agent.middleStep(state.getView(learner), history.getView(learner));
+		}
+		agent.terminalStep(state.getView(learner), history.getView(learner));
+	}
+
+	/**
+	 * @return The state of the current or last episode
+	 */
+	State getState() {
+		return state;
+	}
+
+	/**
+	 * @return The history of the current or last episode
+	 */
+	History getHistory() {
+		return history;
+	}
+
+	private boolean isTerminated() {
+		return alive[0] == 0 || alive[1] == 0 || state.getTurnNumber() >= maxTurns;
+	}
+
+	// Starts a new episode from a fresh copy of the map
+	private void reset() {
+		state = stateCreator.createState();
+		history = new History();
+		history.addPlayer(learner);
+		history.addPlayer(opponent);
+		xExtent = state.getXExtent();
+
+		Map<Integer, Unit> all = state.getUnits();
+		numUnits = 0;
+		int maxId = 0;
+		for (int id : all.keySet()) {
+			maxId = Math.max(maxId, id);
+		}
+		if (units.length < all.size()) {
+			units = new Unit[all.size()];
+			player = new int[all.size()];
+			target = new int[all.size()];
+			order = new Action[all.size()];
+			executionOrder = new int[all.size()];
+		}
+		if (slotOf.length <= maxId) {
+			slotOf = new int[maxId + 1];
+		}
+		Arrays.fill(slotOf, -1);
+
+		int tiles = xExtent * state.getYExtent();
+		if (occupancy.length != tiles) {
+			occupancy = new int[tiles];
+		}
+		for (int x = 0; x < xExtent; x++) {
+			for (int y = 0; y < state.getYExtent(); y++) {
+				occupancy[tile(x, y)] = state.positionAvailable(x, y) ? EMPTY : BLOCKED;
+			}
+		}
+
+		alive[0] = 0;
+		alive[1] = 0;
+		for (Unit unit : all.values()) {
+			int slot = numUnits++;
+			units[slot] = unit;
+			player[slot] = unit.getPlayer() == learner ? 0 : 1;
+			target[slot] = -1;
+			order[slot] = null;
+			slotOf[unit.ID] = slot;
+			occupancy[tile(unit.getxPosition(), unit.getyPosition())] = slot + 1;
+			alive[player[slot]]++;
+		}
+	}
+
+	// Records the agent's compound attacks and sets the targets they name
+	private void issueCommands(Map<Integer, Action> actions) {
+		int turnNumber = state.getTurnNumber();
+		for (Map.Entry<Integer, Action> entry : actions.entrySet()) {
+			Action action = entry.getValue();
+			int slot = slotOfUnit(entry.getKey());
+			if (slot < 0 || player[slot] != 0 || !(action instanceof TargetedAction)
+					|| (action.getType() != ActionType.COMPOUNDATTACK && action.getType() != ActionType.PRIMITIVEATTACK)) {
+				continue;
+			}
+			history.recordCommandRecieved(learner, turnNumber, entry.getKey(), action);
+			target[slot] = ((TargetedAction) action).getTargetId();
+			order[slot] = action;
+		}
+	}
+
+	// Gives every idle scripted footman that sees an enemy something to attack
+	private void issueScriptedCommands() {
+		int turnNumber = state.getTurnNumber();
+		for (int slot = 0; slot < numUnits; slot++) {
+			Unit unit = units[slot];
+			if (unit == null || player[slot] != 1) {
+				continue;
+			}
+			if (target[slot] >= 0) {
+				// combatAgent sends all of its standing orders every turn
+				history.recordCommandRecieved(opponent, turnNumber, unit.ID, order[slot]);
+				continue;
+			}
+			int nearest = -1;
+			int nearestDistance = Integer.MAX_VALUE;
+			for (int other = 0; other < numUnits; other++) {
+				if (units[other] != null && player[other] == 0) {
+					int distance = distance(unit, units[other]);
+					if (distance < nearestDistance) {
+						nearestDistance = distance;
+						nearest = other;
+					}
+				}
+			}
+			if (nearest < 0 || nearestDistance >= unit.getTemplate().getSightRange()) {
+				continue;
+			}
+			int chosen = random.nextDouble() < NEAREST_TARGET_CHANCE ? nearest : randomUnitOf(0);
+			Action action = Action.createCompoundAttack(unit.ID, units[chosen].ID);
+			history.recordCommandRecieved(opponent, turnNumber, unit.ID, action);
+			target[slot] = units[chosen].ID;
+			order[slot] = action;
+		}
+	}
+
+	// The slot of a uniformly chosen living unit of the given side
+	private int randomUnitOf(int side) {
+		int pick = random.nextInt(alive[side]);
+		for (int slot = 0; slot < numUnits; slot++) {
+			if (units[slot] != null && player[slot] == side && pick-- == 0) {
+				return slot;
+			}
+		}
+		throw new IllegalStateException("No living unit for side " + side);
+	}
+
+	// Every unit with a target attacks or moves once, in a random order
+	private void executeTurn() {
+		int count = 0;
+		for (int slot = 0; slot < numUnits; slot++) {
+			if (units[slot] != null && target[slot] >= 0) {
+				executionOrder[count++] = slot;
+			}
+		}
+		for (int i = count - 1; i > 0; i--) {
+			int j = random.nextInt(i + 1);
+			int swap = executionOrder[i];
+			executionOrder[i] = executionOrder[j];
+			executionOrder[j] = swap;
+		}
+
+		for (int i = 0; i < count; i++) {
+			int slot = executionOrder[i];
+			Unit unit = units[slot];
+			if (unit == null) {
+				// killed earlier this turn
+				continue;
+			}
+			int targetSlot = slotOfUnit(target[slot]);
+			ActionFeedback feedback;
+			if (targetSlot < 0 || units[targetSlot] == null) {
+				feedback = ActionFeedback.FAILED;
+			} else if (distance(unit, units[targetSlot]) <= unit.getTemplate().getRange()) {
+				// like SEPIA's compound attack, which is done after a single hit
+				attack(slot, targetSlot);
+				feedback = ActionFeedback.COMPLETED;
+			} else {
+				feedback = step(slot, units[targetSlot]) ? ActionFeedback.INCOMPLETE : ActionFeedback.FAILED;
+			}
+			history.recordCommandFeedback(unit.getPlayer(), state.getTurnNumber(), new ActionResult(order[slot], feedback));
+			// the agent picks a new target whenever an attack ends, a scripted footman once its target is dead
+			boolean targetDead = targetSlot < 0 || units[targetSlot] == null;
+			if (player[slot] == 0 ? feedback != ActionFeedback.INCOMPLETE : targetDead) {
+				target[slot] = -1;
+				order[slot] = null;
+			}
+		}
+	}
+
+	// One hit rolled like BestEffortModel, removing the defender if it dies
+	private void attack(int attackerSlot, int defenderSlot) {
+		Unit attacker = units[attackerSlot];
+		Unit defender = units[defenderSlot];
+		UnitTemplate template = attacker.getTemplate();
+		int damage = Math.max(1, template.getBasicAttack() - defender.getTemplate().getArmor())
+				+ template.getPiercingAttack();
+		damage -= random.nextInt() % ((damage + 2) / 2);
+		history.recordDamage(attacker, defender, damage, state);
+		defender.setHP(defender.getCurrentHealth() - damage);
+		defender.deprecateOldView();
+		if (defender.getCurrentHealth() > 0) {
+			return;
+		}
+		history.recordDeath(defender, state);
+		occupancy[tile(defender.getxPosition(), defender.getyPosition())] = EMPTY;
+		state.removeUnit(defender.ID);
+		units[defenderSlot] = null;
+		alive[player[defenderSlot]]--;
+	}
+
+	// Moves the unit to the free neighbouring tile closest to the target. Returns false if no free
+	// tile is closer than where the unit stands.
+	private boolean step(int slot, Unit goal) {
+		Unit unit = units[slot];
+		int x = unit.getxPosition();
+		int y = unit.getyPosition();
+		int bestDx = 0;
+		int bestDy = 0;
+		long best = closeness(x, y, goal);
+		for (int dx = -1; dx <= 1; dx++) {
+			for (int dy = -1; dy <= 1; dy++) {
+				int nx = x + dx;
+				int ny = y + dy;
+				if ((dx == 0 && dy == 0) || !state.inBounds(nx, ny) || occupancy[tile(nx, ny)] != EMPTY) {
+					continue;
+				}
+				long value = closeness(nx, ny, goal);
+				if (value < best) {
+					best = value;
+					bestDx = dx;
+					bestDy = dy;
+				}
+			}
+		}
+		if (bestDx == 0 && bestDy == 0) {
+			return false;
+		}
+		occupancy[tile(x, y)] = EMPTY;
+		state.moveUnit(unit, Direction.getDirection(bestDx, bestDy));
+		occupancy[tile(unit.getxPosition(), unit.getyPosition())] = slot + 1;
+		unit.deprecateOldView();
+		return true;
+	}
+
+	// Chebyshev distance to the goal, ties broken by squared euclidean distance
+	private static long closeness(int x, int y, Unit goal) {
+		int dx = Math.abs(goal.getxPosition() - x);
+		int dy = Math.abs(goal.getyPosition() - y);
+		return (long) Math.max(dx, dy) << 32 | (dx * dx + dy * dy);
+	}
+
+	private static int distance(Unit a, Unit b) {
+		return Math.max(Math.abs(a.getxPosition() - b.getxPosition()), Math.abs(a.getyPosition() - b.getyPosition()));
+	}
+
+	private int slotOfUnit(int id) {
+		return id >= 0 && id < slotOf.length ? slotOf[id] : -1;
+	}
+
+	private int tile(int x, int y) {
+		return y * xExtent + x;
+	}
+}
@@ -0,0 +1,139 @@
+package edu.cwru.sepia.agent;
+
+import java.util.Locale;
+
+/**
+ * Decides when training has converged so a run can stop before it has played all of its episodes.
+ *
+ * After every round of testing the monitor takes the mean reward of the last window rounds and the
+ * relative change of the weights since the previous round, the L2 norm of the change over the norm of
+ * the old weights. A round is an improvement if the window mean beats the best one so far by more
+ * than the plateau threshold, or if the weights still moved by more than the weight tolerance when it
+ * is set. Once patience rounds in a row have not improved and at least minEpisodes training episodes
+ * have been played, training has converged.
+ *
+ * Shared by parallel training workers, so every method is synchronized. minEpisodes is checked
+ * against the learner's training episodes: those it restored from a snapshot plus every one played
+ * since by the learner or any of its workers, which is what the learner's count adds up to at the end.
+ */
+final class ConvergenceMonitor {
+
+	private final int window;
+	private final double plateauThreshold;
+	private final int patience;
+	private final int minEpisodes;
+	private final double weightTolerance;
+
+	// the last window rewards, oldest overwritten first
+	private final double[] rewards;
+	private int rounds;
+	private int episodes;
+	private double bestMean = Double.NEGATIVE_INFINITY;
+	private int staleRounds;
+	// the weights as of the last round, null until the first
+	private double[] lastWeights;
+	private double weightChange = Double.NaN;
+	private String reason;
+
+	ConvergenceMonitor(int window, double plateauThreshold, int patience, int minEpisodes,
+			double weightTolerance) {
+		this.window = Math.max(1, window);
+		this.plateauThreshold = plateauThreshold;
+		this.patience = Math.max(1, patience);
+		this.minEpisodes = minEpisodes;
+		this.weightTolerance = weightTolerance;
+		this.rewards = new double[this.window];
+	}
+
+	/**
+	 * Counts on from the training episodes a learner resumed from a snapshot had already played.
+	 */
+	synchronized void resumeAt(int episodesPlayed) {
+		episodes = episodesPlayed;
+	}
+
+	/**
+	 * Counts a finished training episode.
+	 */
+	synchronized void episodePlayed() {
+		episodes++;
+	}
+
+	/**
+	 * Takes in a finished round of testing and the weights as they are now.
+	 *
+	 * @return true if training has converged, now or at an earlier round
+	 */
+	synchronized boolean roundRecorded(double averageReward, double[] weights) {
+		rewards[rounds % window] = averageReward;
+		rounds++;
+		weightChange = relativeChange(weights);
+		if (reason != null) {
+			return true;
+		}
+
+		double mean = 0;
+		int count = Math.min(rounds, window);
+		for (int i = 0; i < count; i++) {
+			mean += rewards[i];
+		}
+		mean /= count;
+		boolean improved = false;
+		// a window that is not full yet only sets the mark to beat
+		if (mean > bestMean + plateauThreshold || rounds < window) {
+			bestMean = Math.max(bestMean, mean);
+			improved = true;
+		}
+		if (weightTolerance > 0 && !(weightChange <= weightTolerance)) {
+			improved = true;
+		}
+		staleRounds = improved ? 0 : staleRounds + 1;
+
+		if (staleRounds >= patience && episodes() >= minEpisodes) {
+			reason = String.format(Locale.ROOT,
+					"the mean test reward of the last %d rounds stayed within %.2f of its best, %.2f, for %d rounds"
+							+ " and the weights last changed by %.2e",
+					window, plateauThreshold, bestMean, staleRounds, weightChange);
+		}
+		return reason != null;
+	}
+
+	/**
+	 * @return true once a stop criterion has fired
+	 */
+	synchronized boolean converged() {
+		return reason != null;
+	}
+
+	/**
+	 * @return why training converged, or null if it has not
+	 */
+	synchronized String reason() {
+		return reason;
+	}
+
+	/**
+	 * @return the learner's training episodes so far
+	 */
+	synchronized int episodes() {
+		return episodes;
+	}
+
+	// Returns |weights - lastWeights| / |lastWeights| and remembers the weights for the next round
+	private double relativeChange(double[] weights) {
+		if (lastWeights == null || lastWeights.length != weights.length) {
+			lastWeights = weights.clone();
+			return Double.NaN;
+		}
+		double change = 0;
+		double norm = 0;
+		for (int i = 0; i < weights.length; i++) {
+			double weight = weights[i];
+			double delta = weight - lastWeights[i];
+			change += delta * delta;
+			norm += lastWeights[i] * lastWeights[i];
+			lastWeights[i] = weight;
+		}
+		return norm == 0 ? Math.sqrt(change) : Math.sqrt(change / norm);
+	}
+}
@@ -0,0 +1,169 @@
+package edu.cwru.sepia.agent;
+
+import java.io.Serializable;
+import java.util.Arrays;
+
+/**
+ * Accumulating eligibility traces for TD(lambda), one per footman.
+ *
+ * Each trace is a sparse vector of (feature index, value) pairs in footman id indexed primitive
+ * arrays. At every event the footman's trace decays by gamma * lambda and the features of the
+ * footman's last decision are added to it, so the TD error of the event also credits the decisions
+ * that led up to it. Entries that decay below MIN_TRACE are dropped, which keeps a trace as short as
+ * the features recently active for that footman. Decaying, accumulating and applying a trace are
+ * all O(entries), and nothing is allocated once every trace has reached its working size.
+ *
+ * With lambda = 0 a trace holds just the last features, which is the usual one step update.
+ */
+final class EligibilityTraces implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	// entries smaller than this no longer affect the weights noticeably and are dropped
+	static final double MIN_TRACE = 1e-6;
+
+	// footman id -> active feature indices and their trace values, and the number of entries
+	private int[][] indices = new int[0][];
+	private double[][] values = new double[0][];
+	private int[] sizes = new int[0];
+
+	/**
+	 * Empties every trace. Called at the start of each episode.
+	 */
+	void clear() {
+		Arrays.fill(sizes, 0);
+	}
+
+	/**
+	 * Empties one footman's trace, e.g. when it dies.
+	 */
+	void reset(int footmanId) {
+		if (footmanId < sizes.length) {
+			sizes[footmanId] = 0;
+		}
+	}
+
+	/**
+	 * @return the number of active entries in the footman's trace
+	 */
+	int size(int footmanId) {
+		return footmanId < sizes.length ? sizes[footmanId] : 0;
+	}
+
+	/**
+	 * Decays the footman's trace by decay and adds a dense feature vector to it.
+	 */
+	void accumulate(int footmanId, double decay, double[] features) {
+		if (footmanId >= sizes.length) {
+			grow(footmanId);
+		}
+		int size = decay(footmanId, decay);
+		for (int feature = 0; feature < features.length; feature++) {
+			if (features[feature] != 0.0) {
+				size = add(footmanId, size, feature, features[feature]);
+			}
+		}
+		sizes[footmanId] = size;
+	}
+
+	/**
+	 * Decays the footman's trace by decay and adds a sparse feature vector, given as count (index, value)
+	 * pairs, to it. An index may appear more than once.
+	 */
+	void accumulate(int footmanId, double decay, int[] features, double[] values, int count) {
+		if (footmanId >= sizes.length) {
+			grow(footmanId);
+		}
+		int size = decay(footmanId, decay);
+		for (int i = 0; i < count; i++) {
+			size = add(footmanId, size, features[i], values[i]);
+		}
+		sizes[footmanId] = size;
+	}
+
+	/**
+	 * Adds step times the footman's trace to the weights.
+	 */
+	void apply(int footmanId, double step, double[] weights) {
+		int size = size(footmanId);
+		for (int entry = 0; entry < size; entry++) {
+			weights[indices[footmanId][entry]] += step * values[footmanId][entry];
+		}
+	}
+
+	/**
+	 * Adds step times the footman's trace to a pending gradient batch.
+	 */
+	void addTo(int footmanId, double step, GradientBatch batch) {
+		int size = size(footmanId);
+		if (size > 0) {
+			batch.add(step, indices[footmanId], values[footmanId], size);
+		}
+	}
+
+	/**
+	 * @return the Euclidean norm of the footman's trace
+	 */
+	double norm(int footmanId) {
+		int size = size(footmanId);
+		double sum = 0;
+		for (int entry = 0; entry < size; entry++) {
+			double x = values[footmanId][entry];
+			sum += x * x;
+		}
+		return Math.sqrt(sum);
+	}
+
+	// Multiplies the trace by decay, dropping entries that became negligible; returns the new size
+	private int decay(int footmanId, double decay) {
+		int[] index = indices[footmanId];
+		double[] value = values[footmanId];
+		int kept = 0;
+		for (int entry = 0; entry < sizes[footmanId]; entry++) {
+			double x = value[entry] * decay;
+			if (Math.abs(x) >= MIN_TRACE) {
+				index[kept] = index[entry];
+				value[kept] = x;
+				kept++;
+			}
+		}
+		return kept;
+	}
+
+	// Adds x to one entry of a trace holding size entries, returning the new number of entries
+	private int add(int footmanId, int size, int feature, double x) {
+		int entry = find(indices[footmanId], size, feature);
+		if (entry >= 0) {
+			values[footmanId][entry] += x;
+			return size;
+		}
+		if (size == indices[footmanId].length) {
+			indices[footmanId] = Arrays.copyOf(indices[footmanId], Math.max(4, 2 * size));
+			values[footmanId] = Arrays.copyOf(values[footmanId], indices[footmanId].length);
+		}
+		indices[footmanId][size] = feature;
+		values[footmanId][size] = x;
+		return size + 1;
+	}
+
+	private static int find(int[] index, int size, int feature) {
+		for (int entry = 0; entry < size; entry++) {
+			if (index[entry] == feature) {
+				return entry;
+			}
+		}
+		return -1;
+	}
+
+	private void grow(int footmanId) {
+		int length = Math.max(footmanId + 1, sizes.length * 2);
+		int oldLength = sizes.length;
+		indices = Arrays.copyOf(indices, length);
+		values = Arrays.copyOf(values, length);
+		sizes = Arrays.copyOf(sizes, length);
+		for (int i = oldLength; i < length; i++) {
+			indices[i] = new int[0];
+			values[i] = new double[0];
+		}
+	}
+}
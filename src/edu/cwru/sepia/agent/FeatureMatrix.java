@@ -0,0 +1,158 @@
+package edu.cwru.sepia.agent;
+
+import java.io.Serializable;
+import java.util.Arrays;
+
+/**
+ * Footmen x enemies matrix of feature vectors for a single turn. Rows are our footmen, columns are
+ * the enemy footmen and every cell holds RLAgent.NUM_FEATURES doubles in one flat primitive array.
+ * The array is laid out structure of arrays: one plane of rows * cols values per feature, so feature
+ * f of a cell is at f * stride() + cell. That lets QMatrixScorer score every cell with one
+ * contiguous sweep per feature.
+ *
+ * The matrix is built at most once per turn and is shared by action selection, Q-value calculation
+ * and the weight update. Unit ids are mapped to rows and columns through id indexed arrays, so a
+ * lookup never boxes.
+ */
+final class FeatureMatrix implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	private final int numFeatures;
+
+	// the turn the matrix was built for, -1 if it is stale
+	private int turn = -1;
+	// incremented every time the matrix is laid out again
+	private int version = 0;
+
+	private int rows;
+	private int cols;
+	private int[] rowIds = new int[0];
+	private int[] colIds = new int[0];
+	// unit id -> row/column, -1 if the unit is not in the matrix
+	private int[] rowOf = new int[0];
+	private int[] colOf = new int[0];
+	private double[] data = new double[0];
+
+	FeatureMatrix(int numFeatures) {
+		this.numFeatures = numFeatures;
+	}
+
+	/**
+	 * @return true if the matrix was built for this turn and has not been invalidated since.
+	 */
+	boolean isCurrent(int turnNumber) {
+		return turn == turnNumber;
+	}
+
+	/**
+	 * Marks the matrix stale. Called when a new episode starts since turn numbers restart.
+	 */
+	void invalidate() {
+		turn = -1;
+	}
+
+	/**
+	 * Lays out the rows and columns for a new turn. The caller fills every cell afterwards.
+	 */
+	void reset(int turnNumber, UnitList footmen, UnitList enemies) {
+		Arrays.fill(rowOf, -1);
+		Arrays.fill(colOf, -1);
+		rows = 0;
+		cols = 0;
+		rowIds = ensureCapacity(rowIds, footmen.size());
+		colIds = ensureCapacity(colIds, enemies.size());
+		for (int i = 0; i < footmen.size(); i++) {
+			int footId = footmen.get(i);
+			rowOf = ensureIndex(rowOf, footId);
+			rowOf[footId] = rows;
+			rowIds[rows++] = footId;
+		}
+		for (int i = 0; i < enemies.size(); i++) {
+			int enemyId = enemies.get(i);
+			colOf = ensureIndex(colOf, enemyId);
+			colOf[enemyId] = cols;
+			colIds[cols++] = enemyId;
+		}
+		int size = rows * cols * numFeatures;
+		if (data.length < size) {
+			data = new double[size];
+		}
+		turn = turnNumber;
+		version++;
+	}
+
+	/**
+	 * @return a number that changes every time the matrix is laid out for a new turn
+	 */
+	int version() {
+		return version;
+	}
+
+	int rows() {
+		return rows;
+	}
+
+	int cols() {
+		return cols;
+	}
+
+	int rowId(int row) {
+		return rowIds[row];
+	}
+
+	int colId(int col) {
+		return colIds[col];
+	}
+
+	int row(int attackerId) {
+		return 0 <= attackerId && attackerId < rowOf.length ? rowOf[attackerId] : -1;
+	}
+
+	int col(int defenderId) {
+		return 0 <= defenderId && defenderId < colOf.length ? colOf[defenderId] : -1;
+	}
+
+	/**
+	 * @return the index of the (row, col) cell within each feature plane
+	 */
+	int cell(int row, int col) {
+		return row * cols + col;
+	}
+
+	/**
+	 * @return the index of the cell for this pair within each feature plane, or -1 if either unit is missing
+	 */
+	int cellOf(int attackerId, int defenderId) {
+		int row = row(attackerId);
+		int col = col(defenderId);
+		if (row < 0 || col < 0) {
+			return -1;
+		}
+		return cell(row, col);
+	}
+
+	/**
+	 * @return the distance in data() between consecutive features of a cell, the size of a plane
+	 */
+	int stride() {
+		return rows * cols;
+	}
+
+	double[] data() {
+		return data;
+	}
+
+	private static int[] ensureCapacity(int[] array, int size) {
+		return array.length < size ? new int[size] : array;
+	}
+
+	private static int[] ensureIndex(int[] index, int id) {
+		if (id < index.length) {
+			return index;
+		}
+		int[] grown = Arrays.copyOf(index, Math.max(id + 1, index.length * 2));
+		Arrays.fill(grown, index.length, grown.length, -1);
+		return grown;
+	}
+}
@@ -0,0 +1,108 @@
+package edu.cwru.sepia.agent;
+
+import java.io.Serializable;
+import java.util.Arrays;
+
+/**
+ * Accumulates TD gradients for every footman over a number of events and applies them to the weights
+ * in a single step.
+ *
+ * Each accumulated gradient is computed against the weights as they were when the batch started, so
+ * a batch of one event per step is the same as the usual per footman update applied at the end of
+ * the turn.
+ *
+ * When only sparse gradients are added, the step touches just the weights they named, so it costs
+ * O(active features) however many weights there are.
+ */
+final class GradientBatch implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	private final int eventsPerStep;
+	private final double[] gradient;
+	// number of events accumulated since the last step
+	private int events = 0;
+	// number of footman updates accumulated since the last step
+	private int updates = 0;
+	// weights with a pending sparse gradient, and whether a dense gradient is pending
+	private int[] touched = new int[16];
+	private int touchedCount = 0;
+	private final boolean[] isTouched;
+	private boolean dense = false;
+
+	GradientBatch(int numFeatures, int eventsPerStep) {
+		this.eventsPerStep = eventsPerStep;
+		this.gradient = new double[numFeatures];
+		this.isTouched = new boolean[numFeatures];
+	}
+
+	/**
+	 * Adds step * features to the pending gradient.
+	 */
+	void add(double step, double[] features) {
+		for (int i = 0; i < gradient.length; i++) {
+			gradient[i] += step * features[i];
+		}
+		dense = true;
+		updates++;
+	}
+
+	/**
+	 * Adds step times a sparse vector, given as count (index, value) pairs, to the pending gradient.
+	 */
+	void add(double step, int[] indices, double[] values, int count) {
+		for (int i = 0; i < count; i++) {
+			int index = indices[i];
+			gradient[index] += step * values[i];
+			if (!isTouched[index]) {
+				isTouched[index] = true;
+				if (touchedCount == touched.length) {
+					touched = Arrays.copyOf(touched, 2 * touchedCount);
+				}
+				touched[touchedCount++] = index;
+			}
+		}
+		updates++;
+	}
+
+	/**
+	 * Marks the end of an event. Applies the pending gradient once enough events have been seen.
+	 *
+	 * @return true if the weights were updated
+	 */
+	boolean endEvent(double[] weights) {
+		events++;
+		if (events < eventsPerStep) {
+			return false;
+		}
+		return apply(weights);
+	}
+
+	/**
+	 * Applies whatever gradient is pending, e.g. at the end of an episode.
+	 *
+	 * @return true if the weights were updated
+	 */
+	boolean apply(double[] weights) {
+		boolean pending = updates > 0;
+		if (pending && dense) {
+			for (int i = 0; i < weights.length; i++) {
+				weights[i] += gradient[i];
+			}
+			Arrays.fill(gradient, 0.0);
+		} else if (pending) {
+			for (int i = 0; i < touchedCount; i++) {
+				weights[touched[i]] += gradient[touched[i]];
+				gradient[touched[i]] = 0.0;
+			}
+		}
+		for (int i = 0; i < touchedCount; i++) {
+			isTouched[touched[i]] = false;
+		}
+		touchedCount = 0;
+		dense = false;
+		events = 0;
+		updates = 0;
+		return pending;
+	}
+}
@@ -0,0 +1,385 @@
+package edu.cwru.sepia.agent;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+import javax.xml.bind.JAXBException;
+
+import edu.cwru.sepia.environment.model.state.StateCreator;
+
+/**
+ * Tunes RLAgent's gamma, learning rate and epsilon, along with the number of training episodes and the
+ * seed, by training many agents at once.
+ *
+ * Every run trains an agent of its own in a CombatSimulator of its own, from random weights drawn from
+ * its seed, playing the usual round of 5 test episodes after every 10 training episodes. The runs are
+ * tasks on a fork-join pool with a thread per processor. Every round of test results is appended to the
+ * results CSV as soon as it has been played, and a table of all the runs ranked by their final reward is
+ * printed at the end. A run's reward is the mean of its last WINDOW test rounds.
+ *
+ * The search space is a grid over the values given for every parameter, each setting played with every
+ * seed. With -samples=N it is instead N settings drawn at random between the smallest and largest
+ * values given, the learning rate on a log scale. With -cancelAfter=R a run is cancelled once it has
+ * played R rounds and its reward is more than -margin below the median reward of the other runs at the
+ * same round, which stops clearly losing settings early. Test rewards are discounted by each run's own
+ * gamma, so runs of different gammas are only roughly comparable.
+ *
+ * Usage: java -cp lib/SEPIA.jar:bin edu.cwru.sepia.agent.HyperparameterSweep [-map=data/rl_5fv5f.xml]
+ * [-gamma=G,G] [-learningRate=A,A] [-epsilon=E,E] [-episodes=N,N] [-seeds=N] [-samples=N] [-threads=T]
+ * [-cancelAfter=R] [-margin=M] [-options=lambda=0.5+batchSize=4] [-out=sweep.csv]
+ * Options are further RLAgent options for every run, several joined by +. Defaults to the assignment's
+ * gamma, learning rate and epsilon, 1000 episodes and 4 seeds, with no cancellation.
+ */
+public class HyperparameterSweep {
+
+	// test rounds averaged into a run's reward
+	private static final int WINDOW = 3;
+	private static final int MAX_TURNS = 100000;
+	// seed of the random search
+	private static final long SEARCH_SEED = 1;
+	// other runs needed at a round before any run is cancelled there
+	private static final int MIN_PEERS = 2;
+
+	public static void main(String[] args) throws IOException, JAXBException, InterruptedException,
+			ExecutionException {
+		String map = "data/rl_5fv5f.xml";
+		double[] gammas = { 0.9 };
+		double[] learningRates = { .0001 };
+		double[] epsilons = { .02 };
+		double[] episodes = { 1000 };
+		int seeds = 4;
+		int samples = 0;
+		int threads = Runtime.getRuntime().availableProcessors();
+		int cancelAfter = 0;
+		double margin = 50;
+		String options = "";
+		File out = new File("sweep.csv");
+		for (String arg : args) {
+			String value = arg.substring(arg.indexOf('=') + 1);
+			if (arg.startsWith("-map=")) {
+				map = value;
+			} else if (arg.startsWith("-gamma=")) {
+				gammas = parseValues(value);
+			} else if (arg.startsWith("-learningRate=")) {
+				learningRates = parseValues(value);
+			} else if (arg.startsWith("-epsilon=")) {
+				epsilons = parseValues(value);
+			} else if (arg.startsWith("-episodes=")) {
+				episodes = parseValues(value);
+			} else if (arg.startsWith("-seeds=")) {
+				seeds = Integer.parseInt(value);
+			} else if (arg.startsWith("-samples=")) {
+				samples = Integer.parseInt(value);
+			} else if (arg.startsWith("-threads=")) {
+				threads = Math.max(1, Integer.parseInt(value));
+			} else if (arg.startsWith("-cancelAfter=")) {
+				cancelAfter = Integer.parseInt(value);
+			} else if (arg.startsWith("-margin=")) {
+				margin = Double.parseDouble(value);
+			} else if (arg.startsWith("-options=")) {
+				options = value;
+			} else if (arg.startsWith("-out=")) {
+				out = new File(value);
+			} else {
+				throw new IllegalArgumentException("Unknown argument " + arg);
+			}
+		}
+
+		List<Setting> settings = new ArrayList<Setting>();
+		if (samples > 0) {
+			Random random = new Random(SEARCH_SEED);
+			for (int i = 0; i < samples; i++) {
+				double gamma = uniform(random, gammas);
+				double learningRate = Math.exp(uniform(random, log(learningRates)));
+				double epsilon = uniform(random, epsilons);
+				int numEpisodes = (int) episodes[random.nextInt(episodes.length)];
+				for (int seed = 0; seed < seeds; seed++) {
+					settings.add(new Setting(settings.size(), gamma, learningRate, epsilon, numEpisodes, seed,
+							options));
+				}
+			}
+		} else {
+			for (double gamma : gammas) {
+				for (double learningRate : learningRates) {
+					for (double epsilon : epsilons) {
+						for (double numEpisodes : episodes) {
+							for (int seed = 0; seed < seeds; seed++) {
+								settings.add(new Setting(settings.size(), gamma, learningRate, epsilon,
+										(int) numEpisodes, seed, options));
+							}
+						}
+					}
+				}
+			}
+		}
+
+		StateCreator stateCreator = ScenarioGenerator.stateCreator(map);
+		ResultTable table = new ResultTable(out);
+		StoppingRule rule = new StoppingRule(cancelAfter, margin);
+		List<Run> runs = new ArrayList<Run>();
+		for (Setting setting : settings) {
+			runs.add(new Run(setting, stateCreator, table, rule));
+		}
+
+		PrintStream console = System.out;
+		console.println(String.format(Locale.ROOT, "Sweeping %d runs of %s on %d threads, results in %s",
+				runs.size(), new File(map).getName(), threads, out));
+		// the agents report every episode, which would drown the results
+		System.setOut(new PrintStream(new OutputStream() {
+			@Override
+			public void write(int b) {
+			}
+		}));
+		long start = System.nanoTime();
+		List<Result> results = new ArrayList<Result>();
+		ForkJoinPool pool = new ForkJoinPool(threads);
+		try {
+			for (Future<Result> result : pool.invokeAll(runs)) {
+				results.add(result.get());
+			}
+		} finally {
+			pool.shutdown();
+			System.setOut(console);
+			table.close();
+		}
+		double seconds = (System.nanoTime() - start) / 1e9;
+
+		Collections.sort(results, new Comparator<Result>() {
+			@Override
+			public int compare(Result a, Result b) {
+				return Double.compare(b.reward, a.reward);
+			}
+		});
+		long played = 0;
+		console.println(String.format(Locale.ROOT, "%4s %7s %13s %8s %8s %5s %7s %10s %10s  %s", "Run", "Gamma",
+				"LearningRate", "Epsilon", "Episodes", "Seed", "Rounds", "Reward", "Best", "Status"));
+		for (Result result : results) {
+			Setting setting = result.setting;
+			played += result.rounds * 15;
+			console.println(String.format(Locale.ROOT, "%4d %7.3f %13.3g %8.3f %8d %5d %7d %10.2f %10.2f  %s",
+					setting.id, setting.gamma, setting.learningRate, setting.epsilon, setting.numEpisodes,
+					setting.seed, result.rounds, result.reward, result.best,
+					result.cancelled ? "cancelled" : "done"));
+		}
+		console.println(String.format(Locale.ROOT, "%d episodes in %.1f s, %.1f episodes/s", played, seconds,
+				played / seconds));
+	}
+
+	private static double[] parseValues(String list) {
+		String[] fields = list.split(",");
+		double[] values = new double[fields.length];
+		for (int i = 0; i < fields.length; i++) {
+			values[i] = Double.parseDouble(fields[i]);
+		}
+		return values;
+	}
+
+	// Draws uniformly between the smallest and the largest of values
+	private static double uniform(Random random, double[] values) {
+		double min = Double.POSITIVE_INFINITY;
+		double max = Double.NEGATIVE_INFINITY;
+		for (double value : values) {
+			min = Math.min(min, value);
+			max = Math.max(max, value);
+		}
+		return min + random.nextDouble() * (max - min);
+	}
+
+	private static double[] log(double[] values) {
+		double[] logs = new double[values.length];
+		for (int i = 0; i < values.length; i++) {
+			logs[i] = Math.log(values[i]);
+		}
+		return logs;
+	}
+
+	// Mean of the last WINDOW test rounds
+	private static double recentReward(List<Double> testRewards) {
+		int from = Math.max(0, testRewards.size() - WINDOW);
+		double sum = 0;
+		for (int i = from; i < testRewards.size(); i++) {
+			sum += testRewards.get(i);
+		}
+		return sum / Math.max(1, testRewards.size() - from);
+	}
+
+	/**
+	 * The hyperparameters and seed of one run.
+	 */
+	private static final class Setting {
+		final int id;
+		final double gamma;
+		final double learningRate;
+		final double epsilon;
+		final int numEpisodes;
+		final long seed;
+		final String options;
+
+		Setting(int id, double gamma, double learningRate, double epsilon, int numEpisodes, long seed,
+				String options) {
+			this.id = id;
+			this.gamma = gamma;
+			this.learningRate = learningRate;
+			this.epsilon = epsilon;
+			// training stops after a round of testing
+			this.numEpisodes = Math.max(10, numEpisodes / 10 * 10);
+			this.seed = seed;
+			this.options = options;
+		}
+
+		// The agent's arguments for this setting
+		String[] args() {
+			List<String> args = new ArrayList<String>();
+			args.add(Integer.toString(numEpisodes));
+			args.add("false");
+			args.add("gamma=" + gamma);
+			args.add("learningRate=" + learningRate);
+			args.add("epsilon=" + epsilon);
+			args.add("seed=" + seed);
+			for (String option : options.split("\\+")) {
+				if (!option.isEmpty()) {
+					args.add(option);
+				}
+			}
+			return args.toArray(new String[args.size()]);
+		}
+	}
+
+	private static final class Result {
+		final Setting setting;
+		final int rounds;
+		final double reward;
+		final double best;
+		final boolean cancelled;
+
+		Result(Setting setting, List<Double> testRewards, boolean cancelled) {
+			this.setting = setting;
+			this.rounds = testRewards.size();
+			this.reward = recentReward(testRewards);
+			this.best = testRewards.isEmpty() ? Double.NaN : Collections.max(testRewards);
+			this.cancelled = cancelled;
+		}
+	}
+
+	/**
+	 * Trains one agent until it has played its episodes or the stopping rule cancels it.
+	 */
+	private static final class Run implements Callable<Result> {
+		private final Setting setting;
+		private final StateCreator stateCreator;
+		private final ResultTable table;
+		private final StoppingRule rule;
+
+		Run(Setting setting, StateCreator stateCreator, ResultTable table, StoppingRule rule) {
+			this.setting = setting;
+			this.stateCreator = stateCreator;
+			this.table = table;
+			this.rule = rule;
+		}
+
+		@Override
+		public Result call() {
+			RLAgent primary = new RLAgent(0, setting.args());
+			RLAgent agent = new RLAgent(primary, setting.numEpisodes, setting.seed, false);
+			CombatSimulator simulator = new CombatSimulator(stateCreator, agent.getPlayerNumber(), setting.seed,
+					MAX_TURNS);
+			List<Double> testRewards = agent.testRewards();
+			while (!agent.isFinished()) {
+				int rounds = testRewards.size();
+				simulator.runEpisode(agent);
+				if (testRewards.size() > rounds) {
+					double reward = recentReward(testRewards);
+					table.record(setting, testRewards.size(), testRewards.get(rounds), reward);
+					if (rule.losing(testRewards.size(), reward)) {
+						return new Result(setting, testRewards, true);
+					}
+				}
+			}
+			return new Result(setting, testRewards, false);
+		}
+	}
+
+	/**
+	 * Cancels a run whose reward is more than the margin below the median of the other runs' rewards at
+	 * the same round, once it has played enough rounds.
+	 */
+	private static final class StoppingRule {
+		private final int after;
+		private final double margin;
+		// rewards reported at each round, by round
+		private final List<List<Double>> rewards = new ArrayList<List<Double>>();
+
+		StoppingRule(int after, double margin) {
+			this.after = after;
+			this.margin = margin;
+		}
+
+		synchronized boolean losing(int round, double reward) {
+			if (after <= 0) {
+				return false;
+			}
+			while (rewards.size() < round) {
+				rewards.add(new ArrayList<Double>());
+			}
+			List<Double> peers = rewards.get(round - 1);
+			boolean losing = round >= after && peers.size() >= MIN_PEERS && reward < median(peers) - margin;
+			peers.add(reward);
+			return losing;
+		}
+
+		private static double median(List<Double> values) {
+			List<Double> sorted = new ArrayList<Double>(values);
+			Collections.sort(sorted);
+			int middle = sorted.size() / 2;
+			return sorted.size() % 2 == 1 ? sorted.get(middle) : (sorted.get(middle - 1) + sorted.get(middle)) / 2;
+		}
+	}
+
+	/**
+	 * The results CSV: a row for every round of every run, written as soon as the round is played.
+	 */
+	private static final class ResultTable {
+		private final BufferedWriter writer;
+
+		ResultTable(File file) throws IOException {
+			writer = new BufferedWriter(new FileWriter(file));
+			writer.write("run,gamma,learningRate,epsilon,episodes,seed,round,trainingEpisodes,testReward,reward");
+			writer.newLine();
+			writer.flush();
+		}
+
+		synchronized void record(Setting setting, int round, double testReward, double reward) {
+			try {
+				writer.write(String.format(Locale.ROOT, "%d,%s,%s,%s,%d,%d,%d,%d,%.4f,%.4f", setting.id,
+						setting.gamma, setting.learningRate, setting.epsilon, setting.numEpisodes, setting.seed,
+						round, 10 * round, testReward, reward));
+				writer.newLine();
+				writer.flush();
+			} catch (IOException ex) {
+				System.err.println("Failed to write sweep results. Reason: " + ex.getMessage());
+			}
+		}
+
+		synchronized void close() {
+			try {
+				writer.close();
+			} catch (IOException ex) {
+				System.err.println("Failed to close sweep results. Reason: " + ex.getMessage());
+			}
+		}
+	}
+}
@@ -0,0 +1,198 @@
+package edu.cwru.sepia.agent;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Locale;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Streams the learning curve to a CSV file while training runs.
+ *
+ * Every finished round of testing is appended as one line: the games played before it, counted the
+ * same way as printTestData, the average cumulative test reward and the milliseconds since training
+ * started. A learner resumed from a snapshot numbers its rounds on from the ones it restored. Lines
+ * are buffered and flushed at least every flushInterval seconds by a background thread, and once more
+ * when the log is closed or the JVM shuts down, so a run that dies loses at most the last interval of
+ * results.
+ *
+ * Shared by parallel training workers, so every method is synchronized.
+ *
+ * Running this class follows a learning curve file like tail -f and prints it in the format of
+ * printTestData, reading only the lines written since it last looked:
+ * java -cp lib/SEPIA.jar:bin edu.cwru.sepia.agent.LearningCurveLog FILE [-f]
+ */
+final class LearningCurveLog {
+
+	private static final String HEADER = "episodes,average_reward,time_ms";
+	// how often the follow reader looks for new lines
+	private static final long POLL_MILLIS = 500;
+
+	private final File file;
+	private final long startNanos = System.nanoTime();
+	private final ScheduledExecutorService flusher;
+	private final Thread shutdownHook;
+	private BufferedWriter writer;
+	// rounds of testing recorded so far
+	private int rounds;
+	// whether lines have been written since the last flush
+	private boolean dirty;
+
+	LearningCurveLog(File file, double flushIntervalSeconds) {
+		this.file = file;
+		this.flusher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "learning-curve-flusher");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		long intervalMillis = Math.max(1, (long) (flushIntervalSeconds * 1000));
+		flusher.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				flush();
+			}
+		}, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+		this.shutdownHook = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				flush();
+			}
+		}, "learning-curve-shutdown");
+		Runtime.getRuntime().addShutdownHook(shutdownHook);
+	}
+
+	/**
+	 * Numbers the following rounds on from the given number of rounds, those a resumed learner restored.
+	 */
+	synchronized void resumeAt(int restoredRounds) {
+		rounds = restoredRounds;
+	}
+
+	/**
+	 * Appends the average reward of a finished round of testing.
+	 */
+	synchronized void record(double averageReward) {
+		String line = String.format(Locale.ROOT, "%d,%.2f,%d", 10 * rounds, averageReward,
+				(System.nanoTime() - startNanos) / 1000000);
+		rounds++;
+		try {
+			if (writer == null) {
+				file.getAbsoluteFile().getParentFile().mkdirs();
+				boolean exists = file.exists() && file.length() > 0;
+				writer = new BufferedWriter(new FileWriter(file, true));
+				if (!exists) {
+					writer.write(HEADER);
+					writer.newLine();
+				}
+			}
+			writer.write(line);
+			writer.newLine();
+			dirty = true;
+		} catch (IOException ex) {
+			System.err.println("Failed to write learning curve. Reason: " + ex.getMessage());
+		}
+	}
+
+	/**
+	 * Writes any buffered lines to the file.
+	 */
+	synchronized void flush() {
+		if (!dirty || writer == null) {
+			return;
+		}
+		try {
+			writer.flush();
+			dirty = false;
+		} catch (IOException ex) {
+			System.err.println("Failed to flush learning curve. Reason: " + ex.getMessage());
+		}
+	}
+
+	/**
+	 * Flushes and closes the file and stops the background flushes.
+	 */
+	synchronized void close() {
+		flusher.shutdownNow();
+		try {
+			Runtime.getRuntime().removeShutdownHook(shutdownHook);
+		} catch (IllegalStateException ex) {
+			// already shutting down, the hook flushes anyway
+		}
+		flush();
+		if (writer != null) {
+			try {
+				writer.close();
+			} catch (IOException ex) {
+				System.err.println("Failed to close learning curve. Reason: " + ex.getMessage());
+			}
+			writer = null;
+		}
+	}
+
+	public static void main(String[] args) throws IOException, InterruptedException {
+		if (args.length < 1) {
+			System.err.println("Usage: LearningCurveLog FILE [-f]");
+			System.exit(1);
+		}
+		File file = new File(args[0]);
+		boolean follow = args.length > 1 && "-f".equals(args[1]);
+
+		System.out.println("Games Played      Average Cumulative Reward      Seconds");
+		System.out.println("-------------     -------------------------      -------");
+		long position = 0;
+		StringBuilder partial = new StringBuilder();
+		do {
+			if (file.length() < position) {
+				// the file was replaced by a new run, start over
+				position = 0;
+				partial.setLength(0);
+			}
+			if (file.length() > position) {
+				RandomAccessFile in = new RandomAccessFile(file, "r");
+				try {
+					in.seek(position);
+					byte[] buffer = new byte[8192];
+					int read;
+					while ((read = in.read(buffer)) > 0) {
+						position += read;
+						for (int i = 0; i < read; i++) {
+							char c = (char) buffer[i];
+							if (c == '\n') {
+								printLine(partial.toString().trim());
+								partial.setLength(0);
+							} else {
+								partial.append(c);
+							}
+						}
+					}
+				} finally {
+					in.close();
+				}
+			}
+			if (follow) {
+				Thread.sleep(POLL_MILLIS);
+			}
+		} while (follow);
+	}
+
+	// Prints one CSV line of a learning curve as a printTestData row
+	private static void printLine(String line) {
+		if (line.isEmpty() || line.equals(HEADER)) {
+			return;
+		}
+		String[] fields = line.split(",");
+		if (fields.length < 3) {
+			return;
+		}
+		System.out.println(String.format(Locale.ROOT, "%-18s%-31s%.1f", fields[0], fields[1],
+				Long.parseLong(fields[2]) / 1000.0));
+	}
+}
@@ -0,0 +1,226 @@
+package edu.cwru.sepia.agent;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Learns RLAgent's weights from recorded trajectory logs (see TrajectoryLog) instead of live games.
+ *
+ * The logs are memory mapped and every epoch replays their update events, in the order they were
+ * played, through RLAgent's own TD update (see RLAgent.applyUpdate): the weights move towards the
+ * cumulative reward recorded for the event by the learning rate times the error. Nothing is allocated
+ * per record. With several threads each one replays its own slice of every log through a worker agent,
+ * and all of them update the same weights without locking (Hogwild style), as ParallelEpisodicRunner's
+ * workers do.
+ *
+ * The learned weights are written as a binary checkpoint, by default agent_weights/weights.bin, which
+ * RLAgent loads when its load argument is true.
+ *
+ * Usage: java -cp lib/SEPIA.jar:bin edu.cwru.sepia.agent.OfflineTrainer LOG... [-epochs=N]
+ * [-learningRate=A] [-threads=T] [-weights=FILE] [-seed=S] [-out=FILE]
+ * Training starts from the weights checkpoint given with -weights, otherwise from random weights drawn
+ * with the seed. Defaults to 10 epochs at RLAgent's learning rate on one thread.
+ */
+public class OfflineTrainer {
+
+	// RLAgent's learning rate and the seed of its random weights
+	private static final double LEARNING_RATE = 0.0001;
+	private static final long SEED = 12345;
+	// largest part of a log mapped at once, mappings are limited to 2GB
+	private static final long SEGMENT_BYTES = 1L << 30;
+
+	public static void main(String[] args) throws IOException, InterruptedException, ExecutionException {
+		List<File> logs = new ArrayList<File>();
+		int epochs = 10;
+		double learningRate = LEARNING_RATE;
+		int threads = 1;
+		File initial = null;
+		long seed = SEED;
+		File out = WeightCheckpointer.CHECKPOINT_FILE;
+		for (String arg : args) {
+			String value = arg.substring(arg.indexOf('=') + 1);
+			if (!arg.startsWith("-")) {
+				logs.add(new File(arg));
+			} else if (arg.startsWith("-epochs=")) {
+				epochs = Integer.parseInt(value);
+			} else if (arg.startsWith("-learningRate=")) {
+				learningRate = Double.parseDouble(value);
+			} else if (arg.startsWith("-threads=")) {
+				threads = Math.max(1, Integer.parseInt(value));
+			} else if (arg.startsWith("-weights=")) {
+				initial = new File(value);
+			} else if (arg.startsWith("-seed=")) {
+				seed = Long.parseLong(value);
+			} else if (arg.startsWith("-out=")) {
+				out = new File(value);
+			} else {
+				throw new IllegalArgumentException("Unknown argument " + arg);
+			}
+		}
+		if (logs.isEmpty()) {
+			throw new IllegalArgumentException("Give at least one trajectory log");
+		}
+
+		double[] weights;
+		if (initial != null) {
+			weights = WeightCheckpointer.read(initial);
+			if (weights == null || weights.length != RLAgent.NUM_FEATURES) {
+				throw new IllegalArgumentException(initial + " does not hold " + RLAgent.NUM_FEATURES + " weights");
+			}
+		} else {
+			weights = new double[RLAgent.NUM_FEATURES];
+			Random random = new Random(seed);
+			for (int i = 0; i < weights.length; i++) {
+				weights[i] = random.nextDouble() * 2 - 1;
+			}
+		}
+
+		// the agent whose update is replayed, and a worker sharing its weights for every thread
+		RLAgent primary = new RLAgent(0, new String[] { "0", "false", "learningRate=" + learningRate });
+		primary.weights = weights;
+		List<RLAgent> learners = new ArrayList<RLAgent>();
+		for (int thread = 0; thread < threads; thread++) {
+			learners.add(new RLAgent(primary, 0, seed + thread, false));
+		}
+
+		List<ByteBuffer> segments = new ArrayList<ByteBuffer>();
+		long bytes = 0;
+		for (File log : logs) {
+			bytes += map(log, segments);
+		}
+		List<List<Slice>> work = new ArrayList<List<Slice>>();
+		for (int thread = 0; thread < threads; thread++) {
+			work.add(new ArrayList<Slice>());
+		}
+		int recordBytes = TrajectoryLog.recordBytes(RLAgent.NUM_FEATURES);
+		for (ByteBuffer segment : segments) {
+			int records = segment.capacity() / recordBytes;
+			for (int thread = 0; thread < threads; thread++) {
+				int from = (int) ((long) records * thread / threads);
+				int to = (int) ((long) records * (thread + 1) / threads);
+				work.get(thread).add(new Slice(segment, from * recordBytes, to * recordBytes));
+			}
+		}
+		System.out.println(String.format(Locale.ROOT, "Training on %d log(s), %.1f MB, %d thread(s)",
+				logs.size(), bytes / 1e6, threads));
+		System.out.println(String.format(Locale.ROOT, "%6s %12s %14s %14s %10s", "Epoch", "Events", "RMS TD error",
+				"Events/s", "MB/s"));
+
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		try {
+			for (int epoch = 1; epoch <= epochs; epoch++) {
+				long start = System.nanoTime();
+				List<Future<double[]>> results = new ArrayList<Future<double[]>>();
+				for (int thread = 0; thread < threads; thread++) {
+					results.add(executor.submit(new Epoch(work.get(thread), learners.get(thread))));
+				}
+				double events = 0;
+				double squaredError = 0;
+				for (Future<double[]> result : results) {
+					events += result.get()[0];
+					squaredError += result.get()[1];
+				}
+				double seconds = (System.nanoTime() - start) / 1e9;
+				System.out.println(String.format(Locale.ROOT, "%6d %12.0f %14.4f %14.0f %10.1f", epoch, events,
+						Math.sqrt(squaredError / Math.max(1, events)), events / seconds, bytes / 1e6 / seconds));
+			}
+		} finally {
+			executor.shutdown();
+		}
+
+		WeightCheckpointer.write(out, weights, WeightCheckpointer.versionOf(out) + 1);
+		System.out.println("Weights " + Arrays.toString(weights) + " written to " + out);
+	}
+
+	// Maps the records of a log, in segments of whole records, and returns the number of bytes mapped
+	private static long map(File log, List<ByteBuffer> segments) throws IOException {
+		RandomAccessFile file = new RandomAccessFile(log, "r");
+		try {
+			FileChannel channel = file.getChannel();
+			ByteBuffer header = ByteBuffer.allocate(TrajectoryLog.HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+			channel.read(header, 0);
+			header.flip();
+			int recordBytes = TrajectoryLog.recordBytes(RLAgent.NUM_FEATURES);
+			if (header.remaining() < TrajectoryLog.HEADER_BYTES || header.getInt() != TrajectoryLog.MAGIC
+					|| header.getInt() != TrajectoryLog.FORMAT || header.getInt() != RLAgent.NUM_FEATURES
+					|| header.getInt() != recordBytes) {
+				throw new IOException(log + " is not a trajectory log of " + RLAgent.NUM_FEATURES + " features");
+			}
+			long records = (channel.size() - TrajectoryLog.HEADER_BYTES) / recordBytes;
+			long perSegment = SEGMENT_BYTES / recordBytes;
+			for (long first = 0; first < records; first += perSegment) {
+				long count = Math.min(perSegment, records - first);
+				segments.add(channel.map(FileChannel.MapMode.READ_ONLY,
+						TrajectoryLog.HEADER_BYTES + first * recordBytes, count * recordBytes)
+						.order(ByteOrder.LITTLE_ENDIAN));
+			}
+			return records * recordBytes;
+		} finally {
+			// the mappings stay valid once the file is closed
+			file.close();
+		}
+	}
+
+	// The records between two offsets of a mapped segment
+	private static final class Slice {
+		final ByteBuffer buffer;
+		final int from;
+		final int to;
+
+		Slice(ByteBuffer buffer, int from, int to) {
+			this.buffer = buffer;
+			this.from = from;
+			this.to = to;
+		}
+	}
+
+	// One pass of one thread over its slices. Returns the number of events and their summed squared TD error.
+	private static final class Epoch implements Callable<double[]> {
+		private final List<Slice> slices;
+		private final RLAgent learner;
+
+		Epoch(List<Slice> slices, RLAgent learner) {
+			this.slices = slices;
+			this.learner = learner;
+		}
+
+		@Override
+		public double[] call() {
+			int recordBytes = TrajectoryLog.recordBytes(RLAgent.NUM_FEATURES);
+			double[] features = new double[RLAgent.NUM_FEATURES];
+			long events = 0;
+			double squaredError = 0;
+			for (Slice slice : slices) {
+				ByteBuffer buffer = slice.buffer;
+				for (int offset = slice.from; offset < slice.to; offset += recordBytes) {
+					if ((buffer.getInt(offset + TrajectoryLog.FLAGS) & TrajectoryLog.EVENT) == 0) {
+						continue;
+					}
+					for (int i = 0; i < features.length; i++) {
+						features[i] = buffer.getDouble(offset + TrajectoryLog.FEATURES + 8 * i);
+					}
+					double step = learner.applyUpdate(learner.weights, features,
+							buffer.getDouble(offset + TrajectoryLog.UPDATE_TARGET));
+					double error = step / learner.learningRate;
+					events++;
+					squaredError += error * error;
+				}
+			}
+			return new double[] { events, squaredError };
+		}
+	}
+}
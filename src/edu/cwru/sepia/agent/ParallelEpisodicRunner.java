@@ -0,0 +1,168 @@
+package edu.cwru.sepia.agent;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import edu.cwru.sepia.environment.Environment;
+import edu.cwru.sepia.environment.model.Model;
+import edu.cwru.sepia.environment.model.state.State;
+import edu.cwru.sepia.environment.model.state.StateCreator;
+import edu.cwru.sepia.experiment.Configuration;
+import edu.cwru.sepia.experiment.Runner;
+
+/**
+ * Episodic runner that trains an RLAgent on several headless SEPIA environments at once.
+ *
+ * Each thread gets its own model, its own copy of the opponent and its own RLAgent worker. All of the
+ * workers share the weight array of the RLAgent built from the configuration and update it without
+ * locking (Hogwild style). The configured number of training episodes is split between the threads
+ * in rounds of 10, and every worker plays its own test rounds after each 10 training episodes, so the
+ * shared test results keep the shape of a sequential run. Workers stop short of their rounds once the
+ * learner's test rewards have converged (see ConvergenceMonitor).
+ *
+ * To use it set the RunnerClass in the configuration file to edu.cwru.sepia.agent.ParallelEpisodicRunner.
+ * The number of threads is read from the experiment.parallel.NumThreads parameter and defaults to the
+ * number of available processors. Setting experiment.evaluation.Threads to N plays the test rounds on
+ * N separate threads against snapshots of the weights while the workers keep training (see
+ * TestEvaluator). A learner resumed from a snapshot only plays the training episodes it has left.
+ * With experiment.SaveAgents it saves a new snapshot once they are done; the workers' test rounds are
+ * part of it, but the workers do not save snapshots on the way.
+ */
+public class ParallelEpisodicRunner extends Runner {
+
+	public static final String NUM_THREADS = "experiment.parallel.NumThreads";
+	public static final String MODEL_CLASS = "environment.model.class";
+
+	private static final int SEED = 6;
+
+	public ParallelEpisodicRunner(Configuration configuration, StateCreator stateCreator, Agent[] agents) {
+		super(configuration, stateCreator, agents);
+	}
+
+	@Override
+	public void run() {
+		int learnerIndex = -1;
+		for (int i = 0; i < agents.length; i++) {
+			if (agents[i] instanceof RLAgent) {
+				learnerIndex = i;
+			}
+		}
+		if (learnerIndex < 0) {
+			throw new IllegalStateException("ParallelEpisodicRunner needs an RLAgent player");
+		}
+		RLAgent learner = (RLAgent) agents[learnerIndex];
+
+		int evaluationThreads = configuration.getInt(TestEvaluator.THREADS, 0);
+		if (evaluationThreads > 0) {
+			learner.setEvaluator(new TestEvaluator(learner,
+					TestEvaluator.sepiaArena(configuration, stateCreator, agents, learnerIndex), evaluationThreads));
+		}
+
+		learner.saveSnapshots(configuration);
+		int rounds = (learner.numEpisodes - learner.episodesPlayed()) / 10;
+		if (rounds <= 0) {
+			// resumed from a snapshot that had already played every training episode
+			learner.finishTraining();
+			return;
+		}
+		int numThreads = configuration.getInt(NUM_THREADS, Runtime.getRuntime().availableProcessors());
+		numThreads = Math.max(1, Math.min(numThreads, rounds));
+		System.out.println("Training on " + numThreads + " threads.");
+
+		ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+		List<Future<?>> results = new ArrayList<Future<?>>();
+		List<RLAgent> workers = new ArrayList<RLAgent>();
+		for (int i = 0; i < numThreads; i++) {
+			// spread the rounds of 10 training episodes as evenly as possible
+			int workerRounds = rounds / numThreads + (i < rounds % numThreads ? 1 : 0);
+			final RLAgent worker = new RLAgent(learner, 10 * workerRounds, learner.random().nextLong(),
+					i == 0);
+			worker.setConfiguration(configuration);
+			workers.add(worker);
+
+			Agent[] workerAgents = new Agent[agents.length];
+			for (int j = 0; j < agents.length; j++) {
+				workerAgents[j] = j == learnerIndex ? worker : copy(agents[j], configuration);
+			}
+			final Environment environment = new Environment(workerAgents,
+					createModel(configuration, stateCreator, SEED + i), SEED + i);
+			results.add(executor.submit(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						while (!worker.isFinished()) {
+							environment.runEpisode();
+						}
+					} catch (InterruptedException ex) {
+						Thread.currentThread().interrupt();
+					}
+				}
+			}));
+		}
+		executor.shutdown();
+
+		try {
+			for (Future<?> result : results) {
+				result.get();
+			}
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			executor.shutdownNow();
+			return;
+		} catch (ExecutionException ex) {
+			executor.shutdownNow();
+			throw new RuntimeException("Training thread failed", ex.getCause());
+		}
+		// workers stop short of their rounds once training has converged
+		for (RLAgent worker : workers) {
+			learner.addEpisodesPlayed(worker.episodesPlayed());
+		}
+		learner.finishTraining();
+	}
+
+	// Creates the model named by environment.model.class, BestEffortModel by default
+	static Model createModel(Configuration configuration, StateCreator stateCreator, int seed) {
+		String className = configuration.getString(MODEL_CLASS,
+				"edu.cwru.sepia.environment.model.BestEffortModel");
+		try {
+			return (Model) Class.forName(className)
+					.getConstructor(State.class, int.class, StateCreator.class, Configuration.class)
+					.newInstance(stateCreator.createState(), seed, stateCreator, configuration);
+		} catch (ReflectiveOperationException ex) {
+			throw new IllegalStateException("Unable to create model " + className, ex);
+		}
+	}
+
+	// Deep copies an agent through serialization so every environment gets its own opponent. Locks the
+	// agent, since evaluation threads copy opponents while training runs. Not for an RLAgent, which
+	// serializes as a snapshot rather than an Agent.
+	static Agent copy(Agent agent, Configuration configuration) {
+		synchronized (agent) {
+			// the configuration is not serializable, so it is detached for the copy
+			agent.setConfiguration(null);
+			try {
+				ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+				ObjectOutputStream out = new ObjectOutputStream(bytes);
+				out.writeObject(agent);
+				out.close();
+				ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+				Agent result = (Agent) in.readObject();
+				result.setConfiguration(configuration);
+				return result;
+			} catch (IOException | ClassNotFoundException ex) {
+				throw new IllegalStateException("Unable to copy agent " + agent, ex);
+			} finally {
+				agent.setConfiguration(configuration);
+			}
+		}
+	}
+}
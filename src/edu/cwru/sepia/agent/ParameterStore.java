@@ -0,0 +1,260 @@
+package edu.cwru.sepia.agent;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+
+import sun.misc.Unsafe;
+
+/**
+ * Weights shared through a memory-mapped file by several training processes on one machine, for
+ * example one per NUMA node, each playing its own configuration.
+ *
+ * The file holds the weights the store was created with and a slot per process with the sum of every
+ * update that process has published. The shared weights are the created weights plus every slot. A
+ * process claims a slot of its own when it opens the store, so each slot has a single writer and
+ * publishing takes no lock. Every slot holds two copies of its weights and a sequence number: the
+ * writer makes the sequence number odd, writes the copy that is not current and makes it even again,
+ * which makes that copy current. A reader reads the current copy and retries only if the writer has
+ * since started overwriting that copy, so a reader never returns a torn copy, and a writer that died
+ * half way through only leaves its other copy unfinished. Slots are claimed with a file lock on their
+ * region, which is released if the process dies, so a later process takes the slot over along with
+ * everything published through it.
+ *
+ * Layout, native byte order: magic, format, number of weights and number of slots, then the created
+ * weights and the slots, each a sequence number followed by both copies of the weights and aligned to
+ * 64 bytes. Sequence number 2k makes copy k % 2 current.
+ */
+final class ParameterStore {
+
+	static final int MAGIC = 0x524C5057;
+	static final int FORMAT = 2;
+	private static final int HEADER_BYTES = 64;
+
+	// The slots are shared with other processes, which the Java memory model says nothing about, and
+	// MappedByteBuffer only has plain accesses, so the seqlock needs explicit fences between them. Java 8
+	// has no public API for that; Unsafe.loadFence and storeFence are its only fences, so this depends
+	// on sun.misc.Unsafe knowingly and javac warns about it. Unsafe.getUnsafe rejects application
+	// classes, hence the field.
+	private static final Unsafe UNSAFE;
+
+	static {
+		try {
+			Field field = Unsafe.class.getDeclaredField("theUnsafe");
+			field.setAccessible(true);
+			UNSAFE = (Unsafe) field.get(null);
+		} catch (ReflectiveOperationException ex) {
+			throw new ExceptionInInitializerError(ex);
+		}
+	}
+
+	private final File file;
+	private final int numWeights;
+	private final int slots;
+	private final int regionBytes;
+	private final FileChannel channel;
+	private final MappedByteBuffer buffer;
+	private final FileLock slotLock;
+	// region of this process's slot; region 0 holds the created weights
+	private final int slot;
+
+	// the shared weights as of the last sync, this process's published updates, and scratch space
+	private final double[] base;
+	private final double[] published;
+	private final double[] delta;
+	private final double[] shared;
+	private final double[] region;
+
+	private boolean closed = false;
+
+	/**
+	 * Opens the store in file, creating it with the given weights and number of slots if it does not
+	 * exist, and claims a free slot. The weights are then set to the shared weights.
+	 *
+	 * @throws IOException if the file is not a store of as many weights or every slot is in use
+	 */
+	ParameterStore(File file, int slots, double[] weights) throws IOException {
+		this.file = file;
+		this.numWeights = weights.length;
+		this.regionBytes = (8 + 16 * numWeights + 63) / 64 * 64;
+		file.getAbsoluteFile().getParentFile().mkdirs();
+		channel = new RandomAccessFile(file, "rw").getChannel();
+		try {
+			// only one process creates the store, the others wait for it to be written
+			FileLock init = channel.lock(0, HEADER_BYTES, false);
+			try {
+				ByteBuffer header = ByteBuffer.allocate(16).order(ByteOrder.nativeOrder());
+				if (channel.size() < HEADER_BYTES) {
+					this.slots = slots;
+					buffer = map();
+					writeRegion(0, weights);
+					buffer.putInt(4, FORMAT).putInt(8, numWeights).putInt(12, slots);
+					buffer.putInt(0, MAGIC);
+					buffer.force();
+				} else {
+					channel.read(header, 0);
+					header.flip();
+					if (header.getInt() != MAGIC || header.getInt() != FORMAT || header.getInt() != numWeights) {
+						throw new IOException(file + " is not a parameter store of " + numWeights + " weights");
+					}
+					this.slots = header.getInt();
+					buffer = map();
+				}
+			} finally {
+				init.release();
+			}
+			slotLock = claimSlot();
+		} catch (IOException ex) {
+			channel.close();
+			throw ex;
+		} catch (RuntimeException ex) {
+			channel.close();
+			throw ex;
+		}
+		slot = (int) ((slotLock.position() - HEADER_BYTES) / regionBytes);
+
+		// a writer that died half way through left its sequence number odd; its current copy is whole
+		int offset = offset(slot);
+		long sequence = buffer.getLong(offset);
+		if ((sequence & 1) != 0) {
+			buffer.putLong(offset, sequence - 1);
+		}
+		base = new double[numWeights];
+		published = new double[numWeights];
+		delta = new double[numWeights];
+		shared = new double[numWeights];
+		region = new double[numWeights];
+		readRegion(slot, published);
+		readShared(base);
+		System.arraycopy(base, 0, weights, 0, numWeights);
+		System.out.println("Sharing weights through " + file + " in slot " + slot + " of " + this.slots);
+	}
+
+	private MappedByteBuffer map() throws IOException {
+		long size = HEADER_BYTES + (long) (slots + 1) * regionBytes;
+		if (slots < 1 || size > Integer.MAX_VALUE) {
+			throw new IOException(file + " cannot map " + slots + " slots of " + numWeights + " weights");
+		}
+		MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+		mapped.order(ByteOrder.nativeOrder());
+		return mapped;
+	}
+
+	private FileLock claimSlot() throws IOException {
+		for (int candidate = 1; candidate <= slots; candidate++) {
+			try {
+				FileLock lock = channel.tryLock(offset(candidate), regionBytes, false);
+				if (lock != null) {
+					return lock;
+				}
+			} catch (OverlappingFileLockException ex) {
+				// claimed by another agent in this JVM
+			}
+		}
+		throw new IOException("All " + slots + " slots of " + file + " are in use");
+	}
+
+	private int offset(int region) {
+		return HEADER_BYTES + region * regionBytes;
+	}
+
+	/**
+	 * Publishes every change made to the weights since the last sync and then moves them to the shared
+	 * weights, keeping any change made by other threads while the store was read.
+	 */
+	synchronized void sync(double[] weights) {
+		if (closed) {
+			return;
+		}
+		for (int i = 0; i < numWeights; i++) {
+			delta[i] = weights[i] - base[i];
+			published[i] += delta[i];
+		}
+		writeRegion(slot, published);
+		readShared(shared);
+		for (int i = 0; i < numWeights; i++) {
+			weights[i] += shared[i] - base[i] - delta[i];
+			base[i] = shared[i];
+		}
+	}
+
+	// Writes the copy of a region that is not current and makes it current. Only this process writes its
+	// slot.
+	private void writeRegion(int index, double[] values) {
+		int offset = offset(index);
+		long sequence = buffer.getLong(offset);
+		int copy = copyOffset(offset, sequence + 2);
+		buffer.putLong(offset, sequence + 1);
+		// the odd sequence number is visible before any of the copy changes
+		UNSAFE.storeFence();
+		for (int i = 0; i < numWeights; i++) {
+			buffer.putDouble(copy + 8 * i, values[i]);
+		}
+		// and the whole copy before the sequence number that makes it current
+		UNSAFE.storeFence();
+		buffer.putLong(offset, sequence + 2);
+	}
+
+	// Reads the current copy of a region. Retries only if the writer started overwriting that copy while
+	// it was read, which takes a second write after the one in progress, so it never returns a torn copy.
+	private void readRegion(int index, double[] values) {
+		int offset = offset(index);
+		while (true) {
+			long before = buffer.getLong(offset);
+			// the sequence number is read before the copy it names
+			UNSAFE.loadFence();
+			int copy = copyOffset(offset, before);
+			for (int i = 0; i < numWeights; i++) {
+				values[i] = buffer.getDouble(copy + 8 * i);
+			}
+			// and the copy before the sequence number that says whether it was overwritten
+			UNSAFE.loadFence();
+			long after = buffer.getLong(offset);
+			if (after - (before & ~1L) <= 2) {
+				return;
+			}
+			Thread.yield();
+		}
+	}
+
+	// Returns the offset of the copy that is current at the given sequence number, or that was current
+	// before the write an odd sequence number stands for
+	private int copyOffset(int offset, long sequence) {
+		return offset + 8 + (int) ((sequence >>> 1) & 1) * 8 * numWeights;
+	}
+
+	// Sums the created weights and every slot into shared
+	private void readShared(double[] shared) {
+		readRegion(0, shared);
+		for (int index = 1; index <= slots; index++) {
+			readRegion(index, region);
+			for (int i = 0; i < numWeights; i++) {
+				shared[i] += region[i];
+			}
+		}
+	}
+
+	/**
+	 * Releases this process's slot. What it published stays in the store.
+	 */
+	synchronized void close() {
+		if (closed) {
+			return;
+		}
+		closed = true;
+		buffer.force();
+		try {
+			slotLock.release();
+			channel.close();
+		} catch (IOException ex) {
+			System.err.println("Failed to close shared weights " + file + ". Reason: " + ex.getMessage());
+		}
+	}
+}
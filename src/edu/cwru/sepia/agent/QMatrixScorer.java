@@ -0,0 +1,125 @@
+package edu.cwru.sepia.agent;
+
+import java.io.Serializable;
+import java.util.Arrays;
+
+/**
+ * Q-values of every (footman, enemy) cell of a FeatureMatrix, scored in one pass, and the best enemy
+ * column of a footman row.
+ *
+ * Scoring sweeps each feature plane once, multiplying it by that feature's weight into the Q-values.
+ * Those loops run over contiguous doubles with no dependencies between cells, which HotSpot's
+ * superword optimization compiles to SIMD instructions. The scores stay valid until the matrix is
+ * laid out again or the caller's weights version changes, which the agent bumps on every update it
+ * makes. Updates by other parallel workers to shared weights do not bump it, so a worker keeps
+ * scoring with its snapshot until its next update or the next turn, as Hogwild allows. When only one
+ * enemy's column changes, as when a footman takes a new target, rescoreColumn updates just that
+ * column.
+ *
+ * Scores are summed in the same order as RLAgent.dot, so they match calcQValue exactly. Only the
+ * linear weights, one per feature plane, can be scored this way; tile coded weights are rejected.
+ */
+final class QMatrixScorer implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	private final int numFeatures;
+	private double[] q = new double[0];
+	// the weights the scores were computed with, and their version
+	private final double[] scoredWeights;
+	private int weightsVersion;
+	// FeatureMatrix.version() the scores belong to
+	private int matrixVersion = -1;
+	// cells scored since the last call to takeEvaluations
+	private int evaluations;
+
+	QMatrixScorer(int numFeatures) {
+		this.numFeatures = numFeatures;
+		this.scoredWeights = new double[numFeatures];
+	}
+
+	/**
+	 * @return the column with the highest Q-value in this row, the first one on ties, or -1 if none of
+	 *         the row's Q-values is above negative infinity
+	 */
+	int best(FeatureMatrix matrix, double[] weights, int version, int row) {
+		if (!isCurrent(matrix, version)) {
+			score(matrix, weights, version);
+		}
+		return argmax(row * matrix.cols(), matrix.cols());
+	}
+
+	/**
+	 * Rescores one column after its features changed. Does nothing if the scores are stale anyway.
+	 */
+	void rescoreColumn(FeatureMatrix matrix, int version, int col) {
+		if (!isCurrent(matrix, version)) {
+			return;
+		}
+		int cols = matrix.cols();
+		int stride = matrix.stride();
+		double[] data = matrix.data();
+		for (int row = 0; row < matrix.rows(); row++) {
+			int cell = row * cols + col;
+			double value = 0.0;
+			for (int f = 0; f < numFeatures; f++) {
+				value += scoredWeights[f] * data[f * stride + cell];
+			}
+			q[cell] = value;
+		}
+		evaluations += matrix.rows();
+	}
+
+	/**
+	 * @return the number of Q-values computed since the last call
+	 */
+	int takeEvaluations() {
+		int result = evaluations;
+		evaluations = 0;
+		return result;
+	}
+
+	private boolean isCurrent(FeatureMatrix matrix, int version) {
+		return matrixVersion == matrix.version() && weightsVersion == version;
+	}
+
+	private void score(FeatureMatrix matrix, double[] weights, int version) {
+		if (weights.length != numFeatures) {
+			throw new IllegalArgumentException("Expected " + numFeatures + " linear weights, got "
+					+ weights.length);
+		}
+		// score with a snapshot so parallel workers updating the shared weights cannot tear a pass
+		System.arraycopy(weights, 0, scoredWeights, 0, numFeatures);
+
+		int cells = matrix.stride();
+		double[] data = matrix.data();
+		if (q.length < cells) {
+			q = new double[cells];
+		}
+		Arrays.fill(q, 0, cells, 0.0);
+		for (int f = 0; f < numFeatures; f++) {
+			double weight = scoredWeights[f];
+			int plane = f * cells;
+			for (int cell = 0; cell < cells; cell++) {
+				q[cell] += weight * data[plane + cell];
+			}
+		}
+		matrixVersion = matrix.version();
+		weightsVersion = version;
+		evaluations += cells;
+	}
+
+	// Column of the first highest value among q[start, start + cols), -1 if there is none
+	private int argmax(int start, int cols) {
+		double max = Double.NEGATIVE_INFINITY;
+		int result = -1;
+		for (int col = 0; col < cols; col++) {
+			double value = q[start + col];
+			if (value > max) {
+				max = value;
+				result = col;
+			}
+		}
+		return result;
+	}
+}
@@ -1,32 +1,48 @@
 package edu.cwru.sepia.agent;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
 import java.io.BufferedWriter;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InvalidObjectException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamException;
 import java.io.OutputStream;
+import java.io.Serializable;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
-import java.util.Map.Entry;
 import java.util.Random;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
 
 import edu.cwru.sepia.action.Action;
-import edu.cwru.sepia.action.ActionFeedback;
-import edu.cwru.sepia.action.ActionResult;
-import edu.cwru.sepia.environment.model.history.DamageLog;
-import edu.cwru.sepia.environment.model.history.DeathLog;
 import edu.cwru.sepia.environment.model.history.History;
 import edu.cwru.sepia.environment.model.history.History.HistoryView;
 import edu.cwru.sepia.environment.model.state.State;
 import edu.cwru.sepia.environment.model.state.State.StateView;
 import edu.cwru.sepia.environment.model.state.Unit;
 import edu.cwru.sepia.environment.model.state.Unit.UnitView;
+import edu.cwru.sepia.experiment.Configuration;
 
 public class RLAgent extends Agent {
 
@@ -45,18 +61,27 @@ public class RLAgent extends Agent {
 	private int testEpisodesPlayed = 0;
 	// the cumulative reward for the current round of testing
 	private double cumulativeTestReward = 0.0;
-	// A list of average rewards for each round of testing
-	private final List<Double> testRewards = new ArrayList<Double>();
-	// Rewards for each footman since the last event
-	private final Map<Integer, Double> cumulativeRewards = new HashMap<Integer, Double>();
-	// Map of enemy footman id to a list of footmen attacking it
-	private final Map<Integer, List<Integer>> attackMap = new HashMap<Integer, List<Integer>>();
+	// A list of average rewards for each round of testing, shared by all parallel training workers
+	private final List<Double> testRewards;
+	// Discounted reward every footman has received so far this episode, the reward being the same for
+	// all of them. A footman's reward since its last event is this total less its mark.
+	private double rewardTotal = 0.0;
+	private double[] rewardMarks = new double[0];
+	// footmen taking part in this turn's events, and footmen choosing a new target this turn
+	private final UnitSet eventFootmen = new UnitSet();
+	private final UnitSet idleFootmen = new UnitSet();
+	// Discounted reward of all footmen in the current episode, training or testing
+	private double episodeReward = 0.0;
+	// Which enemy each footman is attacking, and how many footmen are attacking each enemy
+	private final AttackAssignments assignments = new AttackAssignments();
 
 	/**
 	 * List of your footmen and your enemies footmen
 	 */
-	private List<Integer> myFootmen;
-	private List<Integer> enemyFootmen;
+	private final UnitList myFootmen = new UnitList();
+	private final UnitList enemyFootmen = new UnitList();
+	// the attacks ordered on the current turn, refilled every turn
+	private final AttackOrders orders = new AttackOrders();
 
 	/**
 	 * Convenience variable specifying enemy agent number. Use this whenever referring
@@ -69,27 +94,134 @@ public class RLAgent extends Agent {
 	 */
 	public static final int NUM_FEATURES = 5;
 
+	// side in tiles of the enemy index buckets, a footman's sight range
+	private static final int ENEMY_INDEX_CELL_SIZE = 4;
+
+	// learner snapshots written by savePlayerData, see there for the layout
+	private static final int SNAPSHOT_MAGIC = 0x524C5341;
+	private static final int SNAPSHOT_FORMAT = 1;
+	// SEPIA's runner parameters saying whether and how often agents are saved
+	static final String SAVE_AGENTS = "experiment.SaveAgents";
+	static final String EPISODES_PER_SAVE = "experiment.EpisodesPerSave";
+
+	// tile widths of the raw features when they are tile coded: distance, enemy HP, our HP, number of
+	// attackers and the targeting flag
+	private static final double[] TILE_WIDTHS = { 2, 15, 15, 1, 5 };
+
 	/** Use this random number generator for your epsilon exploration. When you submit we will
 	 * change this seed so make sure that your agent works for more than the default seed.
+	 * Private since restoring a snapshot replaces it; see random().
 	 */
-	public final Random random = new Random(12345);
+	private Random random = new Random(12345);
 
 	/**
-	 * Your Q-function weights.
+	 * Your Q-function weights. Kept primitive and updated in place so the Q-value kernel never boxes.
 	 */
-	public Double[] weights;
+	public double[] weights;
+
+	// scratch feature vectors reused by calcQValue and the weight update
+	private final double[] featureScratch = new double[NUM_FEATURES];
+	private final double[] updateFeatures = new double[NUM_FEATURES];
+	// features for every (footman, enemy) pair, built at most once per turn
+	private final FeatureMatrix featureMatrix = new FeatureMatrix(NUM_FEATURES);
+	// the enemies' views while the matrix is built, looked up once per column instead of once per cell
+	private UnitView[] enemyViews = new UnitView[0];
+	// Q-values of the whole feature matrix and the best target of every footman
+	private final QMatrixScorer scorer = new QMatrixScorer(NUM_FEATURES);
+	// bumped whenever this agent changes the weights, so the scorer knows when its Q-values are stale
+	private int weightsVersion;
+	// the previous turn's logs, read at most once per turn
+	private final TurnDigest turnDigest = new TurnDigest();
+
+	// number of events whose gradients are accumulated before the weights are updated
+	private final int batchSize;
+	// pending gradients when batchSize is greater than 1, otherwise null
+	private final GradientBatch gradientBatch;
+
+	// training episodes between binary weight checkpoints, 0 to save the text weights file every episode
+	private final int checkpointInterval;
+	// background checkpoint writer when checkpointInterval is positive and this agent saves weights
+	private transient WeightCheckpointer checkpointer;
+
+	// trace decay of TD(lambda) per event on top of gamma, 0 for the one step update
+	private final double lambda;
+	// per footman eligibility traces when lambda is positive, otherwise null
+	private final EligibilityTraces traces;
+
+	// hashed tile coding of the features on top of the linear ones, null for the linear features only
+	private final TileCoder tileCoder;
+	// when tile coding, the weights touched by the features last passed to tdStep: the linear weights
+	// followed by the active tiles, and how far each moves per unit of step
+	private final int[] activeWeights;
+	private final double[] activeValues;
+
+	// capacity of the experience replay buffer, 0 to disable replay
+	private final int replayCapacity;
+	// number of replayed updates after each training episode
+	private final int replaySteps;
+	// past update transitions, null if replay is disabled
+	private transient ReplayBuffer replay;
+	private final double[] replayFeatures = new double[NUM_FEATURES];
+
+	// number of nearest enemies scored when picking a target, 0 to score every enemy
+	private final int nearestEnemies;
+	// positions of the living enemies when nearestEnemies is positive, otherwise null
+	private final SpatialGrid enemyIndex;
+	private final int[] candidates;
+
+	// metrics file for turn and episode telemetry, null to disable it
+	private final String telemetryFile;
+	// seconds between telemetry flushes
+	private final double telemetryInterval;
+	private transient TrainingTelemetry telemetry;
+
+	// streams each round of test results to a CSV file as it finishes, null to disable it; shared by
+	// parallel training workers
+	private transient LearningCurveLog learningCurve;
+	// ends training early once the test rewards stop improving, null to play every episode; shared by
+	// parallel training workers
+	private transient ConvergenceMonitor convergence;
+	// log of the training turns for offline learning, shared with the workers, and this agent's episode
+	private transient TrajectoryLog trajectoryLog;
+	private transient TrajectoryLog.Episode trajectory;
+	private final double[] trajectoryFeatures = new double[NUM_FEATURES];
+	// weights shared with other training processes through a mapped file, null to train alone; shared
+	// by parallel training workers
+	private transient ParameterStore parameterStore;
+	// training episodes between syncs with the shared weights
+	private final int syncInterval;
+	// plays the test rounds against weight snapshots in the background, null to play them in sequence;
+	// shared by parallel training workers
+	private transient TestEvaluator evaluator;
+	// true for a probe agent that only plays test episodes for a TestEvaluator
+	private boolean evaluating = false;
+
+	// true if this agent is one of several parallel training workers sharing a primary agent's weights
+	private final boolean worker;
+	// whether the weights are saved after every training episode
+	private final boolean savesWeights;
+	// set once a worker has played all of its episodes
+	private volatile boolean finished = false;
+	// training episodes between snapshots saved to snapshotFile(), 0 to save none
+	private int snapshotInterval = 0;
+	// set once SEPIA's runner has saved this agent, which it does not do after the final episode
+	private transient boolean savedBySepia = false;
 
 	/**
 	 * These variables are set for you according to the assignment definition. You can change them,
 	 * but it is not recommended. If you do change them please let us know and explain your reasoning for
-	 * changing them.
+	 * changing them. The gamma=, learningRate= and epsilon= options override them for a run, for
+	 * example in a HyperparameterSweep.
 	 */
-	public final double gamma = 0.9;
-	public final double learningRate = .0001;
-	public final double epsilon = .02;
+	public final double gamma;
+	public final double learningRate;
+	public final double epsilon;
 
 	public RLAgent(int playernum, String[] args) {
 		super(playernum);
+		testRewards = Collections.synchronizedList(new ArrayList<Double>());
+		worker = false;
+		savesWeights = true;
 
 		if (args.length >= 1) {
 			numEpisodes = Integer.parseInt(args[0]);
@@ -106,15 +238,218 @@ public class RLAgent extends Agent {
 			System.out.println("Warning! Load weights argument not specified. Defaulting to not loading.");
 		}
 
-		if (loadWeights) {
-			weights = loadWeights();
-		} else {
-			// initialize weights to random values between -1 and 1
-			weights = new Double[NUM_FEATURES];
-			for (int i = 0; i < weights.length; i++) {
-				weights[i] = random.nextDouble() * 2 - 1;
+		// any further arguments are optional settings written as name=value
+		Map<String, String> options = parseOptions(args, 2);
+		gamma = doubleOption(options, "gamma", 0.9);
+		learningRate = doubleOption(options, "learningRate", .0001);
+		epsilon = doubleOption(options, "epsilon", .02);
+		random.setSeed(intOption(options, "seed", 12345));
+		int tileDimension = Math.max(0, intOption(options, "tiles", 0));
+		tileCoder = tileDimension > 0 ? new TileCoder(TILE_WIDTHS, Math.max(1, intOption(options, "tilings", 8)),
+				tileDimension, NUM_FEATURES, doubleOption(options, "tileLearningRate", 0.001)) : null;
+		activeWeights = activeWeights(tileCoder);
+		activeValues = activeValues(tileCoder, learningRate);
+		batchSize = Math.max(1, intOption(options, "batchSize", 1));
+		gradientBatch = batchSize > 1 ? new GradientBatch(numWeights(), batchSize) : null;
+		checkpointInterval = Math.max(0, intOption(options, "checkpointInterval", 0));
+		if (checkpointInterval > 0) {
+			checkpointer = new WeightCheckpointer(this, WeightCheckpointer.CHECKPOINT_FILE);
+		}
+		lambda = Math.max(0.0, Math.min(1.0, doubleOption(options, "lambda", 0.0)));
+		traces = lambda > 0 ? new EligibilityTraces() : null;
+		replayCapacity = Math.max(0, intOption(options, "replayCapacity", 0));
+		replaySteps = Math.max(0, intOption(options, "replaySteps", 64));
+		if (replayCapacity > 0) {
+			replay = new ReplayBuffer(replayCapacity, NUM_FEATURES);
+		}
+		nearestEnemies = Math.max(0, intOption(options, "nearestEnemies", 0));
+		enemyIndex = nearestEnemies > 0 ? new SpatialGrid(ENEMY_INDEX_CELL_SIZE) : null;
+		candidates = new int[nearestEnemies];
+		telemetryFile = options.get("telemetry");
+		telemetryInterval = doubleOption(options, "telemetryInterval", 10.0);
+		if (telemetryFile != null) {
+			telemetry = new TrainingTelemetry(new File(telemetryFile), telemetryInterval);
+		}
+		String learningCurveFile = options.get("learningCurve");
+		if (learningCurveFile != null) {
+			learningCurve = new LearningCurveLog(new File(learningCurveFile),
+					doubleOption(options, "learningCurveInterval", 1.0));
+		}
+		int patience = Math.max(0, intOption(options, "patience", 0));
+		if (patience > 0) {
+			convergence = new ConvergenceMonitor(intOption(options, "plateauWindow", 10),
+					doubleOption(options, "plateauThreshold", 10.0), patience,
+					intOption(options, "minEpisodes", 200), doubleOption(options, "weightTolerance", 0.0));
+		}
+		String trajectoryFile = options.get("trajectories");
+		if (trajectoryFile != null) {
+			trajectoryLog = new TrajectoryLog(new File(trajectoryFile));
+			trajectory = new TrajectoryLog.Episode(NUM_FEATURES);
+		}
+		syncInterval = Math.max(1, intOption(options, "syncInterval", 1));
+
+		File snapshot = loadWeights ? latestSnapshot() : null;
+		if (snapshot != null) {
+			// resume the whole learner where the last snapshot left it
+			try {
+				readSnapshot(snapshot);
+			} catch (IOException ex) {
+				System.err.println("Failed to load agent snapshot " + snapshot + ". Reason: " + ex.getMessage());
 			}
 		}
+		if (loadWeights && weights == null) {
+			// prefer the full precision checkpoint unless the text file is newer
+			File text = new File("agent_weights/weights.txt");
+			if (WeightCheckpointer.CHECKPOINT_FILE.lastModified() >= text.lastModified()) {
+				weights = WeightCheckpointer.read(WeightCheckpointer.CHECKPOINT_FILE);
+			}
+			if (weights == null) {
+				weights = toPrimitive(loadWeights());
+			}
+			if (weights != null && weights.length != numWeights()) {
+				System.err.println("Ignoring saved weights: expected " + numWeights() + " weights, found "
+						+ weights.length);
+				weights = null;
+			}
+		}
+		if (weights == null) {
+			weights = new double[numWeights()];
+			randomizeWeights(random);
+		}
+		String sharedWeightsFile = options.get("sharedWeights");
+		if (sharedWeightsFile != null) {
+			// an existing store's weights replace the ones loaded or drawn above
+			try {
+				parameterStore = new ParameterStore(new File(sharedWeightsFile),
+						Math.max(1, intOption(options, "sharedSlots", 8)), weights);
+			} catch (IOException ex) {
+				System.err.println("Failed to open shared weights " + sharedWeightsFile + ". Reason: "
+						+ ex.getMessage());
+			}
+		}
+	}
+
+	/**
+	 * Sets the linear weights to random values between -1 and 1. Tile weights start at 0, so a tile
+	 * coded agent starts out as the linear one and its tiles only learn corrections to it.
+	 */
+	void randomizeWeights(Random random) {
+		for (int i = 0; i < weights.length; i++) {
+			weights[i] = i < NUM_FEATURES ? random.nextDouble() * 2 - 1 : 0.0;
+		}
+	}
+
+	/**
+	 * Creates a parallel training worker. The worker plays numEpisodes training episodes against its own
+	 * environment while sharing the primary agent's weight array, which every worker updates in place
+	 * without locking (Hogwild style), and its list of test results. When it is done it stops instead of
+	 * exiting the JVM.
+	 *
+	 * @param primary The agent whose weights and test results are shared
+	 * @param numEpisodes Training episodes for this worker, a multiple of 10
+	 * @param seed Seed for this worker's exploration
+	 * @param savesWeights Whether this worker writes the weights file after its training episodes
+	 */
+	RLAgent(RLAgent primary, int numEpisodes, long seed, boolean savesWeights) {
+		this(primary, numEpisodes, seed, savesWeights, false);
+	}
+
+	// A worker, or with evaluating a test probe, which never learns, so it gets none of the learning
+	// state and none of the primary's logs, stores and monitors
+	private RLAgent(RLAgent primary, int numEpisodes, long seed, boolean savesWeights, boolean evaluating) {
+		super(primary.playernum);
+		boolean learns = !evaluating;
+		this.numEpisodes = numEpisodes;
+		this.weights = primary.weights;
+		this.testRewards = primary.testRewards;
+		this.gamma = primary.gamma;
+		this.learningRate = primary.learningRate;
+		this.epsilon = primary.epsilon;
+		this.tileCoder = primary.tileCoder;
+		this.activeWeights = activeWeights(tileCoder);
+		this.activeValues = activeValues(tileCoder, learningRate);
+		this.batchSize = primary.batchSize;
+		this.gradientBatch = learns && batchSize > 1 ? new GradientBatch(numWeights(), batchSize) : null;
+		this.checkpointInterval = primary.checkpointInterval;
+		if (learns && savesWeights && checkpointInterval > 0) {
+			// one checkpointer per file, so the versions it writes keep counting up
+			this.checkpointer = primary.checkpointer;
+		}
+		this.lambda = primary.lambda;
+		this.traces = learns && lambda > 0 ? new EligibilityTraces() : null;
+		this.replayCapacity = primary.replayCapacity;
+		this.replaySteps = primary.replaySteps;
+		if (learns && replayCapacity > 0) {
+			this.replay = new ReplayBuffer(replayCapacity, NUM_FEATURES);
+		}
+		this.nearestEnemies = primary.nearestEnemies;
+		this.enemyIndex = nearestEnemies > 0 ? new SpatialGrid(ENEMY_INDEX_CELL_SIZE) : null;
+		this.candidates = new int[nearestEnemies];
+		this.telemetryFile = primary.telemetryFile;
+		this.telemetryInterval = primary.telemetryInterval;
+		if (learns && savesWeights && telemetryFile != null) {
+			this.telemetry = new TrainingTelemetry(new File(telemetryFile), telemetryInterval);
+		}
+		this.syncInterval = primary.syncInterval;
+		if (learns) {
+			this.learningCurve = primary.learningCurve;
+			this.convergence = primary.convergence;
+			this.trajectoryLog = primary.trajectoryLog;
+			this.trajectory = trajectoryLog != null ? new TrajectoryLog.Episode(NUM_FEATURES) : null;
+			this.parameterStore = primary.parameterStore;
+			this.evaluator = primary.evaluator;
+		}
+		this.worker = true;
+		this.savesWeights = savesWeights;
+		this.isTesting = evaluating;
+		this.evaluating = evaluating;
+		random.setSeed(seed);
+	}
+
+	/**
+	 * Creates a probe that plays greedy test episodes with a snapshot of the weights for a TestEvaluator.
+	 * It never updates the snapshot, saves nothing and records no test results of its own.
+	 */
+	static RLAgent evaluationAgent(RLAgent primary, double[] snapshot, long seed) {
+		RLAgent probe = new RLAgent(primary, 0, seed, false, true);
+		probe.weights = snapshot;
+		return probe;
+	}
+
+	/**
+	 * Plays the test rounds with the given evaluator from now on instead of pausing training for them.
+	 * Must be called before any parallel training workers are created.
+	 */
+	void setEvaluator(TestEvaluator evaluator) {
+		this.evaluator = evaluator;
+	}
+
+	/**
+	 * @return The average reward of the test episodes played so far in the current round
+	 */
+	double averageTestReward() {
+		return testEpisodesPlayed == 0 ? 0.0 : cumulativeTestReward / testEpisodesPlayed;
+	}
+
+	/**
+	 * @return The average reward of every round of testing so far, shared with any parallel workers
+	 */
+	List<Double> testRewards() {
+		return testRewards;
+	}
+
+	/**
+	 * @return true once this worker has played all of its episodes
+	 */
+	boolean isFinished() {
+		return finished;
+	}
+
+	/**
+	 * @return The discounted reward of all of the footmen so far in the current or last episode
+	 */
+	double episodeReward() {
+		return episodeReward;
 	}
 
 	/**
@@ -124,9 +459,19 @@ public class RLAgent extends Agent {
 	public Map<Integer, Action> initialStep(State.StateView stateView, History.HistoryView historyView) {
 
 		// You will need to add code to check if you are in a testing or learning episode
+		if (!worker && !isTesting && episodesPlayed >= numEpisodes) {
+			// resumed from a snapshot that had already finished training
+			System.out.println("Already trained for " + episodesPlayed + " episodes.");
+			finishTraining();
+		}
+
+		if (trajectory != null) {
+			trajectory.clear();
+		}
 
 		// Find all of your units
-		myFootmen = new LinkedList<>();
+		orders.reset();
+		myFootmen.clear();
 		for (Integer unitId : stateView.getUnitIds(playernum)) {
 			Unit.UnitView unit = stateView.getUnit(unitId);
 
@@ -139,7 +484,7 @@ public class RLAgent extends Agent {
 		}
 
 		// Find all of the enemy units
-		enemyFootmen = new LinkedList<>();
+		enemyFootmen.clear();
 		for (Integer unitId : stateView.getUnitIds(ENEMY_PLAYERNUM)) {
 			Unit.UnitView unit = stateView.getUnit(unitId);
 
@@ -150,9 +495,24 @@ public class RLAgent extends Agent {
 				System.err.println("Unknown unit type: " + unitName);
 			}
 		}
-		for (int enemyID : enemyFootmen) {
-			attackMap.put(enemyID, new ArrayList<Integer>());
+		assignments.clear();
+		for (int i = 0; i < enemyFootmen.size(); i++) {
+			assignments.addTarget(enemyFootmen.get(i));
 		}
+		if (enemyIndex != null) {
+			enemyIndex.reset(stateView.getXExtent(), stateView.getYExtent());
+		}
+		if (traces != null) {
+			traces.clear();
+		}
+		episodeReward = 0.0;
+		rewardTotal = 0.0;
+		for (int i = 0; i < myFootmen.size(); i++) {
+			markReward(myFootmen.get(i), 0.0);
+		}
+		// turn numbers restart every episode
+		featureMatrix.invalidate();
+		turnDigest.invalidate();
 		return middleStep(stateView, historyView);
 	}
 
@@ -184,110 +544,192 @@ public class RLAgent extends Agent {
 	 */
 	@Override
 	public Map<Integer, Action> middleStep(State.StateView stateView, History.HistoryView historyView) {
+		if (telemetry != null) {
+			telemetry.turnStarted();
+		}
 		// handle deaths
 		int turnNumber = stateView.getTurnNumber();
-		if (0 < turnNumber) {
-			for (DeathLog death : historyView.getDeathLogs(turnNumber - 1)) {
-				removeDeadUnit(death.getDeadUnitID(), death.getController());
-			}
-		}
-
-		Map<Integer, Action> actions = new HashMap<Integer, Action>();
-		Map<Integer, ActionResult> actResults = null;
-		if (0 < turnNumber) {
-			actResults = historyView.getCommandFeedback(playernum,
-					turnNumber - 1);
-		}
-		for (int footID : myFootmen) {
-			// Reward for this footman
-			double reward = calculateReward(stateView, historyView, footID);
-			if (cumulativeRewards.get(footID) == null) {
-				cumulativeRewards.put(footID, Math.pow(gamma, turnNumber - 1)
-						* reward);
-			}
-			// If testing
-			if (isTesting) {
-				// Update testing reward
-				cumulativeTestReward += Math.pow(gamma, turnNumber - 1) * reward;
-			} else if (eventHappened(turnNumber, stateView, historyView)) {
+		TurnDigest digest = currentTurnDigest(stateView, historyView);
+		eventFootmen.clear();
+		idleFootmen.clear();
+		for (int i = 0; i < digest.numDead(); i++) {
+			removeDeadUnit(digest.deadId(i), digest.deadController(i));
+		}
+		if (enemyIndex != null) {
+			updateEnemyIndex(stateView);
+		}
+		double discount = digest.discount();
+		boolean eventHappened = eventHappened(turnNumber, stateView, historyView);
+		if (eventHappened && telemetry != null) {
+			telemetry.event();
+		}
+		findAffectedFootmen(turnNumber, digest);
+
+		// The reward is the same for every footman, so it is computed once and only the footmen in an
+		// event are visited. The others keep accumulating it through rewardTotal.
+		double reward = myFootmen.isEmpty() ? 0.0 : calculateReward(stateView, historyView, myFootmen.get(0));
+		double turnReward = discount * reward;
+		episodeReward += turnReward * myFootmen.size();
+		// If testing
+		if (isTesting) {
+			// Update testing reward
+			cumulativeTestReward += turnReward * myFootmen.size();
+		} else {
+			for (int i = 0; i < eventFootmen.size(); i++) {
 				// If event happened, update the weights
+				int footID = eventFootmen.get(i);
 				int targID = getFootmansTarget(footID);
-				double[] features = calculateFeatureVector(stateView, historyView, footID, targID);
-				weights = updateWeights(weights, features,
-						cumulativeRewards.get(footID), stateView,
-						historyView, footID);
+				double totalReward = rewardTotal - rewardMarks[footID];
+				double[] features = fillFeatures(stateView, footID, targID, updateFeatures);
+				if (trajectory != null) {
+					trajectory.recordEvent(footID, targID, turnReward, totalReward, features);
+				}
+				if (traces != null) {
+					traceUpdate(footID, features, totalReward);
+				} else if (gradientBatch == null) {
+					updateWeights(weights, features, totalReward, stateView, historyView, footID);
+				} else {
+					double step = tdStep(weights, features, totalReward);
+					if (tileCoder != null) {
+						gradientBatch.add(step, activeWeights, activeValues, activeWeights.length);
+					} else {
+						gradientBatch.add(step, features);
+					}
+					recordUpdate(step, features);
+				}
+				if (replay != null) {
+					replay.add(features, totalReward);
+				}
 				// Reset footman's reward since last event to 0
-				cumulativeRewards.put(footID, 0.0);
-			} else if (0 < turnNumber) {
-				// Track footman's reward since last event
-				cumulativeRewards.put(footID, cumulativeRewards.get(footID)
-						+ Math.pow(gamma, turnNumber - 1) * reward);
+				markReward(footID, rewardTotal + turnReward);
+			}
+			if (trajectory != null && 0 < turnNumber) {
+				for (int i = 0; i < myFootmen.size(); i++) {
+					int footID = myFootmen.get(i);
+					if (!eventFootmen.contains(footID)) {
+						int targID = getFootmansTarget(footID);
+						trajectory.recordTurn(footID, targID, turnReward,
+								fillFeatures(stateView, footID, targID, trajectoryFeatures));
+					}
+				}
 			}
+		}
+		rewardTotal += turnReward;
 
-			if (needsNewAction(footID, actResults) || turnNumber == 0) {
-				// Get the enemy to attack
-				int enemyID = selectAction(stateView, historyView, footID);
-				updateAttackMap(footID, enemyID);
-				actions.put(footID,
-						Action.createCompoundAttack(footID, enemyID));
+		// Choose targets once every update is in, so the Q matrix is scored in a single pass
+		orders.clear();
+		for (int i = 0; i < idleFootmen.size(); i++) {
+			int footID = idleFootmen.get(i);
+			// Get the enemy to attack
+			int enemyID = selectAction(stateView, historyView, footID);
+			updateAttackMap(footID, enemyID);
+			orders.attack(footID, enemyID);
+		}
+		if (gradientBatch != null && eventFootmen.size() > 0 && !isTesting) {
+			if (gradientBatch.endEvent(weights)) {
+				weightsVersion++;
 			}
 		}
-		return actions;
+		int qEvaluations = scorer.takeEvaluations();
+		if (telemetry != null) {
+			telemetry.qEvaluations(qEvaluations);
+			telemetry.turnFinished(turnNumber);
+		}
+		return orders;
 	}
 
-	private void updateAttackMap(int footID, int enemyID) {
-		for (List<Integer> foots : attackMap.values()) {
-			if (foots.contains(foots)) {
-				foots.remove(foots.indexOf(footID));
+	// Moves every living enemy to where it stands now. Only units that changed bucket are relinked.
+	private void updateEnemyIndex(StateView stateView) {
+		for (int i = 0; i < enemyFootmen.size(); i++) {
+			int enemyID = enemyFootmen.get(i);
+			UnitView enemy = stateView.getUnit(enemyID);
+			if (enemy != null) {
+				enemyIndex.put(enemyID, enemy.getXPosition(), enemy.getYPosition());
 			}
 		}
-		attackMap.get(enemyID).add(footID);
 	}
 
-	private boolean needsNewAction(int footID,
-			Map<Integer, ActionResult> actResults) {
-		if (actResults == null
-				|| actResults.get(footID) == null
-				|| actResults.get(footID).getFeedback()
-				.equals(ActionFeedback.COMPLETED)
-				|| actResults.get(footID).getFeedback()
-				.equals(ActionFeedback.FAILED)) {
-			return true;
-		} else {
-			return false;
+	private void updateAttackMap(int footID, int enemyID) {
+		int previous = assignments.assign(footID, enemyID);
+		if (previous != enemyID) {
+			refreshAssignmentFeatures(previous);
 		}
+		refreshAssignmentFeatures(enemyID);
 	}
 
-	private int getFootmansTarget(int footID) {
-		for (Entry<Integer, List<Integer>> entry : attackMap.entrySet()) {
-			if (entry.getValue().contains(footID)) {
-				return entry.getKey();
+	// Adds the footmen that fought or finished an action on the last turn to the event footmen, and the
+	// footmen that finished an action or have none, or every footman on the first turn, to the idle ones.
+	// A death changes the fight for everyone and happens at most once per unit, so it is an event for
+	// every footman.
+	private void findAffectedFootmen(int turnNumber, TurnDigest digest) {
+		if (turnNumber == 0) {
+			for (int i = 0; i < myFootmen.size(); i++) {
+				idleFootmen.add(myFootmen.get(i));
+			}
+			return;
+		}
+		if (digest.numDead() > 0) {
+			for (int i = 0; i < myFootmen.size(); i++) {
+				eventFootmen.add(myFootmen.get(i));
+			}
+		}
+		for (int i = 0; i < digest.numFighters(); i++) {
+			if (!digest.died(digest.fighterId(i))) {
+				eventFootmen.add(digest.fighterId(i));
+			}
+		}
+		for (int i = 0; i < digest.numFinished(); i++) {
+			eventFootmen.add(digest.finishedId(i));
+			idleFootmen.add(digest.finishedId(i));
+		}
+		if (digest.numFeedback() < myFootmen.size()) {
+			// only a footman without an action has no feedback
+			for (int i = 0; i < myFootmen.size(); i++) {
+				if (!digest.hadFeedback(myFootmen.get(i))) {
+					idleFootmen.add(myFootmen.get(i));
+				}
 			}
 		}
-		return -1;
+	}
+
+	// Sets the episode reward total a footman's reward since its last event is counted from
+	private void markReward(int footID, double total) {
+		if (footID >= rewardMarks.length) {
+			rewardMarks = Arrays.copyOf(rewardMarks, Math.max(footID + 1, rewardMarks.length * 2));
+		}
+		rewardMarks[footID] = total;
+	}
+
+	private int getFootmansTarget(int footID) {
+		return assignments.targetOf(footID);
 	}
 
 	private boolean eventHappened(int turnNumber, StateView stateView,
 			HistoryView historyView) {
-		if (0 < turnNumber
-				&& (!historyView.getDeathLogs(turnNumber - 1).isEmpty() || !historyView
-						.getDamageLogs(turnNumber - 1).isEmpty())) {
-			return true;
-		} else {
-			return false;
+		return 0 < turnNumber && currentTurnDigest(stateView, historyView).eventHappened();
+	}
+
+	// Returns the digest of the previous turn's logs, reading them on first use
+	private TurnDigest currentTurnDigest(StateView stateView, HistoryView historyView) {
+		int turnNumber = stateView.getTurnNumber();
+		if (!turnDigest.isCurrent(turnNumber)) {
+			turnDigest.digest(historyView, playernum, turnNumber, gamma);
 		}
+		return turnDigest;
 	}
 
 	private void removeDeadUnit(int deadUnitID, int controller) {
 		if (controller == ENEMY_PLAYERNUM) {
-			attackMap.remove(deadUnitID);
-			enemyFootmen.remove(enemyFootmen.indexOf(deadUnitID));
+			assignments.removeTarget(deadUnitID);
+			if (enemyIndex != null) {
+				enemyIndex.remove(deadUnitID);
+			}
+			enemyFootmen.remove(deadUnitID);
 		} else {
-			myFootmen.remove(myFootmen.indexOf(deadUnitID));
-			for (List<Integer> foots : attackMap.values()) {
-				if (foots.contains(deadUnitID)) {
-					foots.remove(foots.indexOf(deadUnitID));
-				}
+			myFootmen.remove(deadUnitID);
+			assignments.unassign(deadUnitID);
+			if (traces != null) {
+				traces.reset(deadUnitID);
 			}
 		}
 	}
@@ -300,34 +742,142 @@ public class RLAgent extends Agent {
 	 */
 	@Override
 	public void terminalStep(State.StateView stateView, History.HistoryView historyView) {
+		if (evaluating) {
+			testEpisodesPlayed++;
+			return;
+		}
 		System.out.println("Finished episode: " + (episodesPlayed + 1));
+		if (telemetry != null) {
+			telemetry.episodeFinished(isTesting);
+		}
 
 		if (!isTesting) {
 			// increment episode number
 			episodesPlayed++;
-			// If just finished 10, next should be testing
-			if (episodesPlayed % 10 == 0) {
+			if (convergence != null) {
+				convergence.episodePlayed();
+			}
+			// If just finished 10, next should be testing, unless the evaluator tests in the background
+			if (episodesPlayed % 10 == 0 && evaluator == null) {
 				isTesting = true;
 			}
+			// apply any partial batch so it is not carried into the next episode
+			if (gradientBatch != null && gradientBatch.apply(weights)) {
+				weightsVersion++;
+			}
+			if (trajectory != null) {
+				trajectoryLog.append(trajectory);
+			}
+			replayTransitions();
+			if (parameterStore != null && episodesPlayed % syncInterval == 0) {
+				parameterStore.sync(weights);
+				weightsVersion++;
+			}
 			// save the weights
-			saveWeights(weights);
+			if (checkpointer != null) {
+				if (episodesPlayed % checkpointInterval == 0) {
+					checkpointer.checkpoint(weights);
+				}
+			} else if (savesWeights) {
+				saveWeights(box(weights));
+			}
+			if (snapshotInterval > 0 && episodesPlayed % snapshotInterval == 0) {
+				saveSnapshot();
+			}
+			if (episodesPlayed % 10 == 0 && evaluator != null) {
+				// test the weights as they are after this round, with every update applied
+				evaluator.submit(weights);
+				if (episodesPlayed >= numEpisodes || converged()) {
+					finishTraining();
+				}
+			}
 		} else {
 			// increment test number
 			testEpisodesPlayed++;
 			// if 5 tests completed
 			if (testEpisodesPlayed == 5) {
 				// add this round of testing's rewards
-				testRewards.add(cumulativeTestReward / testEpisodesPlayed);
+				recordTestRound(cumulativeTestReward / testEpisodesPlayed);
 				resetTestingState();
-				// If we're done, print the test data and exit
-				if (episodesPlayed == numEpisodes) {
-					printTestData(testRewards);
-					System.exit(0);
+				// If we're done or the rewards have stopped improving, print the test data and exit
+				if (episodesPlayed >= numEpisodes || converged()) {
+					finishTraining();
 				}
 			}
 		}
 	}
 
+	/**
+	 * Adds the average reward of a finished round of testing to the test results. A round that could
+	 * not be played is passed as NaN: it keeps its place in the results but does not count towards
+	 * convergence.
+	 */
+	void recordTestRound(double averageReward) {
+		testRewards.add(averageReward);
+		if (learningCurve != null) {
+			learningCurve.record(averageReward);
+		}
+		if (convergence != null && !Double.isNaN(averageReward)) {
+			convergence.roundRecorded(averageReward, weights);
+		}
+	}
+
+	/**
+	 * @return true if training should stop before all of its episodes are played, because the test
+	 *         rewards have plateaued
+	 */
+	boolean converged() {
+		return convergence != null && convergence.converged();
+	}
+
+	/**
+	 * Called once every training episode has been played or training has converged. A worker just
+	 * stops, otherwise the weights are saved, the remaining test rounds waited for, the test data
+	 * printed and the run ends.
+	 */
+	void finishTraining() {
+		if (telemetry != null) {
+			telemetry.close();
+		}
+		if (parameterStore != null) {
+			parameterStore.sync(weights);
+			if (!worker) {
+				parameterStore.close();
+			}
+		}
+		if (checkpointer != null) {
+			checkpointer.checkpoint(weights);
+			if (!worker) {
+				// the primary's checkpointer is shared with worker 0 and closed by the primary
+				checkpointer.close();
+			}
+		} else if (!worker) {
+			saveWeights(box(weights));
+		}
+		if (worker) {
+			finished = true;
+			return;
+		}
+		if (evaluator != null) {
+			evaluator.close();
+		}
+		if (snapshotInterval > 0 || savedBySepia) {
+			saveSnapshot();
+		}
+		if (learningCurve != null) {
+			learningCurve.close();
+		}
+		if (trajectoryLog != null) {
+			trajectoryLog.close();
+		}
+		printTestData(testRewards);
+		if (converged() && episodesPlayed < numEpisodes) {
+			System.out.println("Stopped after " + episodesPlayed + " of " + numEpisodes
+					+ " training episodes because " + convergence.reason() + ".");
+		}
+		System.exit(0);
+	}
+
 	private void resetTestingState() {
 		isTesting = false;
 		testEpisodesPlayed = 0;
@@ -335,32 +885,145 @@ public class RLAgent extends Agent {
 	}
 
 	/**
-	 * Calculate the updated weights for this agent. 
-	 * @param oldWeights Weights prior to update
+	 * Update the weights for this agent in place.
+	 * @param weights Weights to update
 	 * @param oldFeatures Features from (s,a)
 	 * @param totalReward Cumulative discounted reward for this footman.
 	 * @param stateView Current state of the game.
 	 * @param historyView History of the game up until this point
 	 * @param footmanId The footman we are updating the weights for
-	 * @return The updated weight vector.
+	 * @return The same weight array, after the update.
 	 */
-	public Double[] updateWeights(Double[] oldWeights, double[] oldFeatures,
+	public double[] updateWeights(double[] weights, double[] oldFeatures,
 			double totalReward, State.StateView stateView,
 			History.HistoryView historyView, int footmanId) {
-		Double[] result = new Double[oldWeights.length];
-		System.arraycopy(oldWeights, 0, result, 0, oldWeights.length);
+		// update each individual weight
+		applyUpdate(weights, oldFeatures, totalReward);
+		return weights;
+	}
+
+	/**
+	 * The TD update of updateWeights, for callers that replay recorded events without a game.
+	 *
+	 * @return the step taken, the learning rate times the TD error
+	 */
+	double applyUpdate(double[] weights, double[] features, double totalReward) {
+		double step = tdStep(weights, features, totalReward);
+		recordUpdate(step, features);
+		addStep(weights, step, features);
+		return step;
+	}
 
-		double est = oldFeatures[0];
-		for (int i = 0; i < oldFeatures.length; i++) {
-			est += oldFeatures[i] * oldWeights[i];
+	// TD(lambda) update: the TD error of this event is applied along the footman's eligibility trace, so
+	// it also credits the decisions before the last one
+	private void traceUpdate(int footID, double[] features, double totalReward) {
+		double step = tdStep(weights, features, totalReward);
+		if (tileCoder != null) {
+			traces.accumulate(footID, gamma * lambda, activeWeights, activeValues, activeWeights.length);
+		} else {
+			traces.accumulate(footID, gamma * lambda, features);
+		}
+		if (gradientBatch == null) {
+			traces.apply(footID, step, weights);
+			weightsVersion++;
+		} else {
+			traces.addTo(footID, step, gradientBatch);
 		}
+		if (telemetry != null) {
+			telemetry.weightUpdate(Math.abs(step) * traces.norm(footID));
+		}
+	}
 
-		// update each individual weight
-		for(int i = 0; i < oldWeights.length; i++){
-			Double val = learningRate * (totalReward - est) * oldFeatures[i];
-			result[i] += val;
+	// Replays past transitions, sampled by priority, through the same update rule as updateWeights
+	private void replayTransitions() {
+		if (replay == null || replay.size() == 0) {
+			return;
 		}
-		return result;
+		for (int i = 0; i < replaySteps; i++) {
+			int index = replay.sample(random);
+			replay.features(index, replayFeatures);
+			double step = tdStep(weights, replayFeatures, replay.reward(index));
+			addStep(weights, step, replayFeatures);
+			replay.updatePriority(index, step / learningRate);
+		}
+	}
+
+	// The learning rate times the TD error of the Q estimate for these features. When tile coding, also
+	// leaves the weights the features touch in activeWeights and activeValues.
+	private double tdStep(double[] weights, double[] features, double totalReward) {
+		double est = features[0] + dot(weights, features);
+		if (tileCoder != null) {
+			System.arraycopy(features, 0, activeValues, 0, NUM_FEATURES);
+			tileCoder.tiles(features, activeWeights, NUM_FEATURES);
+			est += tileCoder.value(weights, activeWeights, NUM_FEATURES);
+		}
+		return learningRate * (totalReward - est);
+	}
+
+	// Adds a step computed by tdStep for these features to the weights
+	private void addStep(double[] weights, double step, double[] features) {
+		if (tileCoder != null) {
+			for (int i = 0; i < activeWeights.length; i++) {
+				weights[activeWeights[i]] += step * activeValues[i];
+			}
+		} else {
+			for (int i = 0; i < NUM_FEATURES; i++) {
+				weights[i] += step * features[i];
+			}
+		}
+		weightsVersion++;
+	}
+
+	private void recordUpdate(double step, double[] features) {
+		if (telemetry != null) {
+			telemetry.weightUpdate(step, tileCoder != null ? activeValues : features);
+		}
+	}
+
+	// Size of the weight vector: one weight per feature, followed by the tile coder's
+	private int numWeights() {
+		return NUM_FEATURES + (tileCoder != null ? tileCoder.dimension() : 0);
+	}
+
+	// The linear weights followed by room for the active tiles, or null without tile coding
+	private static int[] activeWeights(TileCoder tileCoder) {
+		if (tileCoder == null) {
+			return null;
+		}
+		int[] active = new int[NUM_FEATURES + tileCoder.activeTiles()];
+		for (int i = 0; i < NUM_FEATURES; i++) {
+			active[i] = i;
+		}
+		return active;
+	}
+
+	// Room for the linear features, then the tiles' step relative to the learning rate, or null
+	private static double[] activeValues(TileCoder tileCoder, double learningRate) {
+		if (tileCoder == null) {
+			return null;
+		}
+		double[] values = new double[NUM_FEATURES + tileCoder.activeTiles()];
+		Arrays.fill(values, NUM_FEATURES, values.length, tileCoder.stepSize() / learningRate);
+		return values;
+	}
+
+	/**
+	 * Dot product of the linear weights with a feature vector. Allocation free.
+	 */
+	static double dot(double[] weights, double[] features) {
+		return dot(weights, features, 0, 1);
+	}
+
+	/**
+	 * Dot product of the weights with the feature vector starting at offset in features, with
+	 * consecutive features stride apart.
+	 */
+	static double dot(double[] weights, double[] features, int offset, int stride) {
+		double sum = 0.0;
+		for (int i = 0; i < NUM_FEATURES; i++) {
+			sum += weights[i] * features[offset + i * stride];
+		}
+		return sum;
 	}
 
 	/**
@@ -376,14 +1039,10 @@ public class RLAgent extends Agent {
 		int targetID = getHighestQEnemy(stateView, historyView, attackerId);
 		// epsilon greedy
 		if (random.nextDouble() < epsilon && enemyFootmen.size() > 1) {
-			int optEnemy = targetID;
-			// Temporarily remove best option
-			enemyFootmen.remove(enemyFootmen.indexOf(targetID));
-			// get random target
-			targetID = enemyFootmen.get(random
-					.nextInt(enemyFootmen.size()));
-			// replace best option
-			enemyFootmen.add(optEnemy);
+			// get a random target other than the best option, skipping over its index
+			int best = enemyFootmen.indexOf(targetID);
+			int pick = random.nextInt(enemyFootmen.size() - 1);
+			targetID = enemyFootmen.get(best >= 0 && pick >= best ? pick + 1 : pick);
 		}
 		return targetID;
 	}
@@ -391,9 +1050,22 @@ public class RLAgent extends Agent {
 	// Returns the id of the enemy footman that has the highest Q value
 	private int getHighestQEnemy(State.StateView stateView,
 			History.HistoryView historyView, int attackerId) {
+		if (enemyIndex != null) {
+			return getHighestQNearbyEnemy(stateView, historyView, attackerId);
+		}
+		FeatureMatrix matrix = currentFeatureMatrix(stateView);
+		int row = matrix.row(attackerId);
+		if (row >= 0 && matrix.cols() == enemyFootmen.size() && tileCoder == null) {
+			int col = scorer.best(matrix, weights, weightsVersion, row);
+			return col >= 0 ? matrix.colId(col)
+					: enemyFootmen.get((int) (Math.random() * enemyFootmen.size()));
+		}
+		// the footman is not in this turn's matrix or the features are tile coded, score the enemies one
+		// by one
 		double maxValue = Double.NEGATIVE_INFINITY;
 		int targetID = enemyFootmen.get((int) (Math.random() * enemyFootmen.size()));
-		for (int enemyID : this.enemyFootmen) {
+		for (int i = 0; i < enemyFootmen.size(); i++) {
+			int enemyID = enemyFootmen.get(i);
 			double value = this.calcQValue(stateView, historyView, attackerId,
 					enemyID);
 			if (value > maxValue) {
@@ -404,6 +1076,25 @@ public class RLAgent extends Agent {
 		return targetID;
 	}
 
+	// Returns the id of the enemy footman with the highest Q value among the nearestEnemies closest ones
+	private int getHighestQNearbyEnemy(State.StateView stateView,
+			History.HistoryView historyView, int attackerId) {
+		UnitView attacker = stateView.getUnit(attackerId);
+		int found = enemyIndex.nearest(attacker.getXPosition(), attacker.getYPosition(), nearestEnemies,
+				candidates);
+		double maxValue = Double.NEGATIVE_INFINITY;
+		int targetID = found > 0 ? candidates[0]
+				: enemyFootmen.get((int) (Math.random() * enemyFootmen.size()));
+		for (int i = 0; i < found; i++) {
+			double value = calcQValue(stateView, historyView, attackerId, candidates[i]);
+			if (value > maxValue) {
+				maxValue = value;
+				targetID = candidates[i];
+			}
+		}
+		return targetID;
+	}
+
 	/**
 	 * Given the current state and the footman in question calculate the reward received on the last turn.
 	 * This is where you will check for things like Did this footman take or give damage? Did this footman die
@@ -440,30 +1131,12 @@ public class RLAgent extends Agent {
 	public double calculateReward(State.StateView stateView, History.HistoryView historyView, int footmanId) {
 		double result = 0;
 		if (stateView.getTurnNumber() > 0) {
-			Map<Integer, Action> actions = historyView.getCommandsIssued(playernum, stateView.getTurnNumber() - 1);
-			if (actions.size() > 0) {
-				result -= 0.1 * actions.size();
-			}
-			double damageDoneToEnemies = 0;
-			double damageTaken = 0;
-			List<DamageLog> damages = historyView.getDamageLogs(stateView.getTurnNumber() - 1);
-			for (DamageLog damage : damages) {
-				if (damage.getAttackerController() == playernum) {
-					damageDoneToEnemies += damage.getDamage();
-				} else {
-					damageTaken += damage.getDamage();
-				}
-			}
-			double agentDeath = 0;
-			double enemyDeaths = 0;
-			List<DeathLog> deaths = historyView.getDeathLogs(stateView.getTurnNumber() - 1);
-			for (DeathLog death : deaths) {
-				if (death.getController() == playernum) {
-					agentDeath += 100;
-				} else {
-					enemyDeaths += 100;
-				}
-			}
+			TurnDigest digest = currentTurnDigest(stateView, historyView);
+			result -= 0.1 * digest.commandsIssued();
+			double damageDoneToEnemies = digest.damageDealt();
+			double damageTaken = digest.damageTaken();
+			double agentDeath = 100 * digest.agentDeaths();
+			double enemyDeaths = 100 * digest.enemyDeaths();
 			//replace with the amt. of damage this footman dealt to enemies
 			//make sure the above variable discounts damages when calculating
 			//i.e. damage dealt n timesteps after the start of the event is weighted by gamma^n
@@ -496,13 +1169,24 @@ public class RLAgent extends Agent {
 			History.HistoryView historyView,
 			int attackerId,
 			int defenderId) {
+		if (telemetry != null) {
+			telemetry.qEvaluations(1);
+		}
+		if (tileCoder != null) {
+			// the linear value plus the weights of the tiles the features fall in
+			double[] features = fillFeatures(stateView, attackerId, defenderId, featureScratch);
+			tileCoder.tiles(features, activeWeights, NUM_FEATURES);
+			return dot(weights, features) + tileCoder.value(weights, activeWeights, NUM_FEATURES);
+		}
 		//take a dot product of features array with the weights array
-		double[] features = calculateFeatureVector(stateView,historyView,attackerId,defenderId);
-		Double dotProduct = 0.0;
-		for(int i = 0; i < NUM_FEATURES; i++){
-			dotProduct += weights[i]*features[i];
+		FeatureMatrix matrix = enemyIndex == null ? currentFeatureMatrix(stateView) : null;
+		int cell = matrix != null ? matrix.cellOf(attackerId, defenderId) : -1;
+		if (cell >= 0) {
+			return dot(weights, matrix.data(), cell, matrix.stride());
 		}
-		return dotProduct;
+		fillUnitFeatures(stateView, attackerId, defenderId, featureScratch, 0, 1);
+		fillAssignmentFeatures(attackerId, defenderId, featureScratch, 0, 1);
+		return dot(weights, featureScratch);
 	}
 
 	/**
@@ -526,30 +1210,98 @@ public class RLAgent extends Agent {
 			History.HistoryView historyView,
 			int attackerId,
 			int defenderId) {
-		double[] result = new double[NUM_FEATURES];
-		UnitView enemy = stateView.getUnit(defenderId);
-		UnitView friendly = stateView.getUnit(attackerId);
+		return fillFeatures(stateView, attackerId, defenderId, new double[NUM_FEATURES]);
+	}
+
+	// Copies the features for (attackerId, defenderId) into result, using this turn's matrix when it can.
+	// The matrix is not built when only the nearest enemies are scored, it would cost O(enemies) per footman.
+	private double[] fillFeatures(State.StateView stateView, int attackerId, int defenderId,
+			double[] result) {
+		FeatureMatrix matrix = enemyIndex == null ? currentFeatureMatrix(stateView) : null;
+		int cell = matrix != null ? matrix.cellOf(attackerId, defenderId) : -1;
+		if (cell >= 0) {
+			double[] data = matrix.data();
+			int stride = matrix.stride();
+			for (int i = 0; i < NUM_FEATURES; i++) {
+				result[i] = data[cell + i * stride];
+			}
+		} else {
+			fillUnitFeatures(stateView, attackerId, defenderId, result, 0, 1);
+			fillAssignmentFeatures(attackerId, defenderId, result, 0, 1);
+		}
+		return result;
+	}
+
+	// Returns the feature matrix for this turn, building it on first use
+	private FeatureMatrix currentFeatureMatrix(State.StateView stateView) {
+		int turnNumber = stateView.getTurnNumber();
+		if (!featureMatrix.isCurrent(turnNumber)) {
+			featureMatrix.reset(turnNumber, myFootmen, enemyFootmen);
+			double[] data = featureMatrix.data();
+			int stride = featureMatrix.stride();
+			if (enemyViews.length < featureMatrix.cols()) {
+				enemyViews = new UnitView[featureMatrix.cols()];
+			}
+			for (int col = 0; col < featureMatrix.cols(); col++) {
+				enemyViews[col] = stateView.getUnit(featureMatrix.colId(col));
+			}
+			for (int row = 0; row < featureMatrix.rows(); row++) {
+				int attackerId = featureMatrix.rowId(row);
+				UnitView friendly = stateView.getUnit(attackerId);
+				for (int col = 0; col < featureMatrix.cols(); col++) {
+					int defenderId = featureMatrix.colId(col);
+					int cell = featureMatrix.cell(row, col);
+					fillUnitFeatures(friendly, enemyViews[col], data, cell, stride);
+					fillAssignmentFeatures(attackerId, defenderId, data, cell, stride);
+				}
+			}
+			Arrays.fill(enemyViews, null);
+		}
+		return featureMatrix;
+	}
+
+	// Recomputes the assignment features of one enemy's column after its attackers changed
+	private void refreshAssignmentFeatures(int defenderId) {
+		int col = featureMatrix.col(defenderId);
+		if (col < 0) {
+			return;
+		}
+		for (int row = 0; row < featureMatrix.rows(); row++) {
+			fillAssignmentFeatures(featureMatrix.rowId(row), defenderId,
+					featureMatrix.data(), featureMatrix.cell(row, col), featureMatrix.stride());
+		}
+		scorer.rescoreColumn(featureMatrix, weightsVersion, col);
+	}
+
+	// Features read from the units themselves, written stride apart from offset
+	private void fillUnitFeatures(State.StateView stateView, int attackerId, int defenderId,
+			double[] result, int offset, int stride) {
+		fillUnitFeatures(stateView.getUnit(attackerId), stateView.getUnit(defenderId), result, offset, stride);
+	}
 
+	private void fillUnitFeatures(UnitView friendly, UnitView enemy, double[] result, int offset, int stride) {
 		// Chebyshev distance if alive
 		if (enemy != null && friendly != null) {
-			result[0] = Math.max(
+			result[offset] = Math.max(
 					Math.abs(enemy.getYPosition() - friendly.getYPosition()),
 					Math.abs(enemy.getXPosition() - friendly.getXPosition()));
+		} else {
+			result[offset] = 0;
 		}
 		//Health if alive
-		if (enemy != null) {
-			result[1] = enemy.getHP();
-		}
+		result[offset + stride] = enemy != null ? enemy.getHP() : 0;
 		// Our health
-		result[2] = friendly.getHP();
-		// Num attacking this enemy or 5
-		result[3] = attackMap.get(defenderId) != null ? attackMap.get(
-				defenderId).size() : 5;
-				// 5 if enemy attacking me or dead
-				result[4] = attackMap.get(defenderId) != null ? attackMap.get(
-						defenderId).contains(attackerId) ? 5 : 0 : 5;
-				return result;
+		result[offset + 2 * stride] = friendly.getHP();
+	}
 
+	// Features read from the current attack assignments, written stride apart from offset
+	private void fillAssignmentFeatures(int attackerId, int defenderId, double[] result, int offset,
+			int stride) {
+		boolean alive = assignments.isTarget(defenderId);
+		// Num attacking this enemy or 5
+		result[offset + 3 * stride] = alive ? assignments.attackerCount(defenderId) : 5;
+		// 5 if enemy attacking me or dead
+		result[offset + 4 * stride] = alive ? assignments.isAttacking(attackerId, defenderId) ? 5 : 0 : 5;
 	}
 
 	/**
@@ -639,13 +1391,318 @@ public class RLAgent extends Agent {
 		return null;
 	}
 
+	// Parses the name=value arguments starting at index first
+	private static Map<String, String> parseOptions(String[] args, int first) {
+		Map<String, String> options = new HashMap<String, String>();
+		for (int i = first; i < args.length; i++) {
+			int split = args[i].indexOf('=');
+			if (split <= 0) {
+				System.out.println("Warning! Ignoring argument " + args[i] + ". Expected name=value.");
+				continue;
+			}
+			options.put(args[i].substring(0, split).trim(), args[i].substring(split + 1).trim());
+		}
+		return options;
+	}
+
+	private static int intOption(Map<String, String> options, String name, int defaultValue) {
+		String value = options.get(name);
+		return value == null ? defaultValue : Integer.parseInt(value);
+	}
+
+	private static double doubleOption(Map<String, String> options, String name, double defaultValue) {
+		String value = options.get(name);
+		return value == null ? defaultValue : Double.parseDouble(value);
+	}
+
+	// Boxes the weights for saveWeights
+	static Double[] box(double[] weights) {
+		Double[] result = new Double[weights.length];
+		for (int i = 0; i < weights.length; i++) {
+			result[i] = weights[i];
+		}
+		return result;
+	}
+
+	// Unboxes weights read by loadWeights, or null if nothing was loaded
+	private static double[] toPrimitive(Double[] weights) {
+		if (weights == null) {
+			return null;
+		}
+		double[] result = new double[weights.length];
+		for (int i = 0; i < weights.length; i++) {
+			result[i] = weights[i];
+		}
+		return result;
+	}
+
+	/**
+	 * Writes a binary snapshot of everything the learner needs to carry on training where it is now:
+	 * the episode and test counters, the test results, the weights, the state of the exploration
+	 * random number generator and the replay buffer. Meant to be called between episodes; traces and
+	 * batched gradients never outlive an episode, so they are not part of it.
+	 *
+	 * Layout: magic, format, episodes played, test episodes played, testing flag, test reward so far,
+	 * test result count and results, weight count and weights, length of the serialized Random and its
+	 * bytes, replay flag and buffer (see ReplayBuffer.write), then a CRC32 of all of that (long).
+	 */
 	@Override
 	public void savePlayerData(OutputStream outputStream) {
-
+		try {
+			writeSnapshot(outputStream);
+		} catch (IOException ex) {
+			System.err.println("Failed to save agent snapshot. Reason: " + ex.getMessage());
+		}
 	}
 
+	/**
+	 * Restores a snapshot written by savePlayerData. Nothing changes unless the whole snapshot is valid
+	 * and has as many weights as this agent's configuration needs. A saved replay buffer is only kept if
+	 * replay is enabled with the same capacity.
+	 */
 	@Override
 	public void loadPlayerData(InputStream inputStream) {
+		try {
+			readSnapshot(inputStream);
+		} catch (IOException ex) {
+			System.err.println("Failed to load agent snapshot. Reason: " + ex.getMessage());
+		}
+	}
 
+	private void writeSnapshot(OutputStream outputStream) throws IOException {
+		CheckedOutputStream checked = new CheckedOutputStream(new BufferedOutputStream(outputStream), new CRC32());
+		DataOutputStream out = new DataOutputStream(checked);
+		out.writeInt(SNAPSHOT_MAGIC);
+		out.writeInt(SNAPSHOT_FORMAT);
+		out.writeInt(episodesPlayed);
+		out.writeInt(testEpisodesPlayed);
+		out.writeBoolean(isTesting);
+		out.writeDouble(cumulativeTestReward);
+		synchronized (testRewards) {
+			out.writeInt(testRewards.size());
+			for (double reward : testRewards) {
+				out.writeDouble(reward);
+			}
+		}
+		out.writeInt(weights.length);
+		for (double weight : weights) {
+			out.writeDouble(weight);
+		}
+		ByteArrayOutputStream randomState = new ByteArrayOutputStream();
+		ObjectOutputStream objects = new ObjectOutputStream(randomState);
+		objects.writeObject(random);
+		objects.close();
+		out.writeInt(randomState.size());
+		randomState.writeTo(out);
+		out.writeBoolean(replay != null);
+		if (replay != null) {
+			replay.write(out);
+		}
+		out.writeLong(checked.getChecksum().getValue());
+		out.flush();
+	}
+
+	private void readSnapshot(InputStream inputStream) throws IOException {
+		CheckedInputStream checked = new CheckedInputStream(new BufferedInputStream(inputStream), new CRC32());
+		DataInputStream in = new DataInputStream(checked);
+		if (in.readInt() != SNAPSHOT_MAGIC || in.readInt() != SNAPSHOT_FORMAT) {
+			throw new IOException("not an agent snapshot");
+		}
+		int savedEpisodes = in.readInt();
+		int savedTestEpisodes = in.readInt();
+		boolean savedTesting = in.readBoolean();
+		double savedTestReward = in.readDouble();
+		double[] savedTestRewards = new double[count(in)];
+		for (int i = 0; i < savedTestRewards.length; i++) {
+			savedTestRewards[i] = in.readDouble();
+		}
+		double[] savedWeights = new double[count(in)];
+		for (int i = 0; i < savedWeights.length; i++) {
+			savedWeights[i] = in.readDouble();
+		}
+		byte[] randomState = new byte[count(in)];
+		in.readFully(randomState);
+		ReplayBuffer savedReplay = in.readBoolean() ? ReplayBuffer.read(in) : null;
+		long checksum = checked.getChecksum().getValue();
+		if (in.readLong() != checksum) {
+			throw new IOException("the snapshot is corrupt");
+		}
+		if (savedWeights.length != numWeights()) {
+			throw new IOException("expected " + numWeights() + " weights, found " + savedWeights.length);
+		}
+		Random savedRandom;
+		try {
+			savedRandom = (Random) new ObjectInputStream(new ByteArrayInputStream(randomState)).readObject();
+		} catch (ClassNotFoundException ex) {
+			throw new IOException("unreadable random state");
+		}
+
+		episodesPlayed = savedEpisodes;
+		testEpisodesPlayed = savedTestEpisodes;
+		isTesting = savedTesting;
+		cumulativeTestReward = savedTestReward;
+		testRewards.clear();
+		for (double reward : savedTestRewards) {
+			testRewards.add(reward);
+		}
+		if (learningCurve != null) {
+			learningCurve.resumeAt(testRewards.size());
+		}
+		if (convergence != null) {
+			convergence.resumeAt(episodesPlayed);
+		}
+		if (weights != null && weights.length == savedWeights.length) {
+			System.arraycopy(savedWeights, 0, weights, 0, savedWeights.length);
+		} else {
+			weights = savedWeights;
+		}
+		weightsVersion++;
+		random = savedRandom;
+		if (replay != null && savedReplay != null && savedReplay.capacity() == replay.capacity()) {
+			replay = savedReplay;
+		}
+		System.out.println("Resuming after " + episodesPlayed + " training episodes.");
+	}
+
+	private static int count(DataInputStream in) throws IOException {
+		int count = in.readInt();
+		if (count < 0) {
+			throw new IOException("the snapshot is corrupt");
+		}
+		return count;
+	}
+
+	/**
+	 * Marks training episodes played by parallel workers as played by this agent, so its snapshots
+	 * count them.
+	 */
+	void addEpisodesPlayed(int count) {
+		episodesPlayed += count;
+	}
+
+	/**
+	 * @return the number of training episodes played
+	 */
+	int episodesPlayed() {
+		return episodesPlayed;
+	}
+
+	/**
+	 * @return the random number generator the agent explores with, replaced when a snapshot is restored
+	 */
+	Random random() {
+		return random;
+	}
+
+	/**
+	 * Saves a snapshot to saves/agent[playernum].agt every experiment.EpisodesPerSave training episodes
+	 * and once training is done, if the runner configuration sets experiment.SaveAgents. For runners
+	 * that play the agent themselves instead of through SEPIA's episodic runner.
+	 */
+	void saveSnapshots(Configuration runnerConfiguration) {
+		snapshotInterval = runnerConfiguration.getBoolean(SAVE_AGENTS, false)
+				? Math.max(1, runnerConfiguration.getInt(EPISODES_PER_SAVE, 1)) : 0;
+	}
+
+	/**
+	 * SEPIA's episodic runner saves agents with Java serialization, which writes this agent's snapshot
+	 * in its place. Deserializing a saved agent therefore gives a SerializedSnapshot, not an Agent: the
+	 * files are only read back by an RLAgent constructed with loadWeights, see latestSnapshot, and the
+	 * runners never copy the learner through serialization, see ParallelEpisodicRunner.copy.
+	 */
+	private Object writeReplace() throws ObjectStreamException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try {
+			writeSnapshot(bytes);
+		} catch (IOException ex) {
+			throw new InvalidObjectException(ex.getMessage());
+		}
+		savedBySepia = true;
+		return new SerializedSnapshot(bytes.toByteArray());
+	}
+
+	/**
+	 * The bytes of a snapshot, as Java serialization writes an RLAgent. Not an Agent, so SEPIA cannot
+	 * load it as a player; an RLAgent resumes from it instead.
+	 */
+	static final class SerializedSnapshot implements Serializable {
+
+		private static final long serialVersionUID = 1L;
+
+		final byte[] data;
+
+		SerializedSnapshot(byte[] data) {
+			this.data = data;
+		}
+	}
+
+	// Where our own runners save snapshots
+	private File snapshotFile() {
+		return new File("saves", "agent" + playernum + ".agt");
+	}
+
+	// The newest of our snapshot and the agents SEPIA's runner saved as saves/agent[playernum]-[episode],
+	// or null if there is none. SEPIA numbers the episodes from 0 in every run, so the number only breaks
+	// ties between files written within the same clock tick.
+	private File latestSnapshot() {
+		File latest = snapshotFile().exists() ? snapshotFile() : null;
+		int latestEpisode = Integer.MAX_VALUE;
+		String prefix = "agent" + playernum + "-";
+		File[] saved = new File("saves").listFiles();
+		if (saved != null) {
+			for (File file : saved) {
+				String name = file.getName();
+				if (!name.startsWith(prefix) || !name.substring(prefix.length()).matches("\\d{1,9}")) {
+					continue;
+				}
+				int episode = Integer.parseInt(name.substring(prefix.length()));
+				long modified = file.lastModified();
+				if (latest == null || modified > latest.lastModified()
+						|| modified == latest.lastModified() && episode > latestEpisode) {
+					latest = file;
+					latestEpisode = episode;
+				}
+			}
+		}
+		return latest;
+	}
+
+	// Reads either a snapshot file or an agent saved through Java serialization
+	private void readSnapshot(File file) throws IOException {
+		InputStream in = new FileInputStream(file);
+		try {
+			if (file.getName().endsWith(".agt")) {
+				readSnapshot(in);
+				return;
+			}
+			Object saved = new ObjectInputStream(in).readObject();
+			if (!(saved instanceof SerializedSnapshot)) {
+				throw new IOException("not an agent snapshot");
+			}
+			readSnapshot(new ByteArrayInputStream(((SerializedSnapshot) saved).data));
+		} catch (ClassNotFoundException ex) {
+			throw new IOException("not an agent snapshot");
+		} finally {
+			in.close();
+		}
+	}
+
+	// Writes a snapshot to a temporary file and renames it into place, so a crash never leaves a torn one
+	private void saveSnapshot() {
+		File file = snapshotFile();
+		File temp = new File(file.getPath() + ".tmp");
+		file.getAbsoluteFile().getParentFile().mkdirs();
+		try {
+			OutputStream out = new FileOutputStream(temp);
+			try {
+				writeSnapshot(out);
+			} finally {
+				out.close();
+			}
+			Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+					StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException ex) {
+			System.err.println("Failed to save " + file + ". Reason: " + ex.getMessage());
+		}
 	}
 }
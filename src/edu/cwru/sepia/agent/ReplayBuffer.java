@@ -0,0 +1,166 @@
+package edu.cwru.sepia.agent;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.util.Random;
+
+/**
+ * Bounded ring buffer of past weight update transitions, stored off heap, with sampling proportional
+ * to priority.
+ *
+ * Every entry is a feature vector and the cumulative reward it was updated towards, laid out back to
+ * back in one direct buffer, so the buffer holds no objects per entry and does not grow the heap.
+ * Priorities live in a sum tree, also off heap, which gives O(log capacity) sampling and priority
+ * updates. New entries get the largest priority seen so far so they are replayed at least once.
+ */
+final class ReplayBuffer {
+
+	// priorities are |TD error| + PRIORITY_EPSILON raised to ALPHA
+	private static final double ALPHA = 0.6;
+	private static final double PRIORITY_EPSILON = 1e-3;
+
+	private final int capacity;
+	private final int numFeatures;
+	private final int stride;
+	// capacity entries of numFeatures features followed by the reward
+	private final DoubleBuffer entries;
+	// sum tree over the priorities; leaves start at index capacity
+	private final DoubleBuffer tree;
+
+	private int next = 0;
+	private int size = 0;
+	private double maxPriority = 1.0;
+
+	ReplayBuffer(int capacity, int numFeatures) {
+		this.capacity = capacity;
+		this.numFeatures = numFeatures;
+		this.stride = numFeatures + 1;
+		this.entries = allocate(capacity * stride);
+		this.tree = allocate(2 * capacity);
+	}
+
+	private static DoubleBuffer allocate(int doubles) {
+		return ByteBuffer.allocateDirect(doubles * 8).order(ByteOrder.nativeOrder()).asDoubleBuffer();
+	}
+
+	int size() {
+		return size;
+	}
+
+	int capacity() {
+		return capacity;
+	}
+
+	/**
+	 * Stores a transition, overwriting the oldest one once the buffer is full.
+	 */
+	void add(double[] features, double reward) {
+		int base = next * stride;
+		for (int i = 0; i < numFeatures; i++) {
+			entries.put(base + i, features[i]);
+		}
+		entries.put(base + numFeatures, reward);
+		setPriority(next, maxPriority);
+		next = (next + 1) % capacity;
+		size = Math.min(size + 1, capacity);
+	}
+
+	/**
+	 * Picks an entry with probability proportional to its priority. The buffer must not be empty.
+	 *
+	 * @return the index of the entry
+	 */
+	int sample(Random random) {
+		double target = random.nextDouble() * tree.get(1);
+		int node = 1;
+		while (node < capacity) {
+			double left = tree.get(2 * node);
+			if (target < left) {
+				node = 2 * node;
+			} else {
+				target -= left;
+				node = 2 * node + 1;
+			}
+		}
+		int index = node - capacity;
+		// rounding can land on an empty leaf, fall back to the newest entry
+		return index < size ? index : (next + capacity - 1) % capacity;
+	}
+
+	/**
+	 * Copies the features of an entry into out.
+	 */
+	void features(int index, double[] out) {
+		int base = index * stride;
+		for (int i = 0; i < numFeatures; i++) {
+			out[i] = entries.get(base + i);
+		}
+	}
+
+	double reward(int index) {
+		return entries.get(index * stride + numFeatures);
+	}
+
+	/**
+	 * Sets an entry's priority from the TD error of its last replay.
+	 */
+	void updatePriority(int index, double tdError) {
+		double priority = Math.pow(Math.abs(tdError) + PRIORITY_EPSILON, ALPHA);
+		maxPriority = Math.max(maxPriority, priority);
+		setPriority(index, priority);
+	}
+
+	/**
+	 * Writes the stored entries, their priorities and the position of the next write.
+	 */
+	void write(DataOutput out) throws IOException {
+		out.writeInt(capacity);
+		out.writeInt(numFeatures);
+		out.writeInt(next);
+		out.writeInt(size);
+		out.writeDouble(maxPriority);
+		for (int i = 0; i < size * stride; i++) {
+			out.writeDouble(entries.get(i));
+		}
+		for (int i = 0; i < size; i++) {
+			out.writeDouble(tree.get(capacity + i));
+		}
+	}
+
+	/**
+	 * Reads a buffer written by write.
+	 */
+	static ReplayBuffer read(DataInput in) throws IOException {
+		int capacity = in.readInt();
+		int numFeatures = in.readInt();
+		int next = in.readInt();
+		int size = in.readInt();
+		if (capacity < 1 || numFeatures < 0 || size < 0 || size > capacity || next < 0 || next >= capacity) {
+			throw new IOException("Invalid replay buffer");
+		}
+		ReplayBuffer buffer = new ReplayBuffer(capacity, numFeatures);
+		buffer.next = next;
+		buffer.size = size;
+		buffer.maxPriority = in.readDouble();
+		for (int i = 0; i < size * buffer.stride; i++) {
+			buffer.entries.put(i, in.readDouble());
+		}
+		for (int i = 0; i < size; i++) {
+			buffer.setPriority(i, in.readDouble());
+		}
+		return buffer;
+	}
+
+	private void setPriority(int index, double priority) {
+		int node = index + capacity;
+		double change = priority - tree.get(node);
+		while (node >= 1) {
+			tree.put(node, tree.get(node) + change);
+			node /= 2;
+		}
+	}
+}
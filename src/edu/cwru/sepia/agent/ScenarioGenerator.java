@@ -0,0 +1,218 @@
+package edu.cwru.sepia.agent;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import javax.xml.bind.JAXBContext;
+import javax.xml.bind.JAXBException;
+import javax.xml.bind.Marshaller;
+
+import edu.cwru.sepia.environment.model.persistence.generated.XmlPlayer;
+import edu.cwru.sepia.environment.model.persistence.generated.XmlState;
+import edu.cwru.sepia.environment.model.persistence.generated.XmlUnit;
+import edu.cwru.sepia.environment.model.state.StateCreator;
+import edu.cwru.sepia.environment.model.state.XmlStateCreator;
+
+/**
+ * Writes footman battle maps of any size, with a matching configuration file, for training and
+ * benchmarking at scale.
+ *
+ * A generated map is a copy of a shipped map (data/rl_5fv5f.xml by default) with its units replaced,
+ * so both players keep their templates and every footman uses the footman template its player had
+ * in that map. Our footmen are player 0 with ids 0..N-1 on the left, the enemy is player 1 with ids
+ * N..N+M-1 on the right, and nextTargetID is N+M. The configuration is a copy of a shipped one
+ * pointing at the new map. The same arguments always produce the same files.
+ *
+ * Usage: java -cp lib/SEPIA.jar:bin edu.cwru.sepia.agent.ScenarioGenerator -footmen=N [-enemies=M]
+ * [-formation=columns|block|scattered] [-width=W] [-height=H] [-seed=S] [-episodes=E]
+ * [-baseMap=data/rl_5fv5f.xml] [-baseConfig=data/5fv5fConfig.xml] [-out=data]
+ * The number of episodes, if given, must be a multiple of 10.
+ *
+ * Formations:
+ * columns   columns of footmen two tiles apart, the layout of the shipped maps (default)
+ * block     footmen packed shoulder to shoulder
+ * scattered footmen placed at random, using the seed, in their own third of the map
+ * The map is sized to fit the armies unless a width or height is given.
+ */
+public class ScenarioGenerator {
+
+	// free tiles between the two armies, so they start out of each other's sight
+	private static final int GAP = 8;
+	private static final int MARGIN = 2;
+
+	public static void main(String[] args) throws IOException, JAXBException {
+		Map<String, String> options = new HashMap<String, String>();
+		for (String arg : args) {
+			int split = arg.indexOf('=');
+			if (!arg.startsWith("-") || split < 0) {
+				throw new IllegalArgumentException("Expected -name=value, got " + arg);
+			}
+			options.put(arg.substring(1, split), arg.substring(split + 1));
+		}
+		if (!options.containsKey("footmen")) {
+			throw new IllegalArgumentException("-footmen=N is required");
+		}
+		String episodes = options.get("episodes");
+		// RLAgent only ends the run after a full round of training and testing
+		if (episodes != null && Integer.parseInt(episodes) % 10 != 0) {
+			throw new IllegalArgumentException("The number of episodes must be a multiple of 10, got " + episodes);
+		}
+		int footmen = Integer.parseInt(options.get("footmen"));
+		int enemies = options.containsKey("enemies") ? Integer.parseInt(options.get("enemies")) : footmen;
+		String formation = value(options, "formation", "columns");
+		long seed = Long.parseLong(value(options, "seed", "0"));
+		File out = new File(value(options, "out", "data"));
+		String name = footmen + "fv" + enemies + "f";
+
+		XmlState state = load(new File(value(options, "baseMap", "data/rl_5fv5f.xml")));
+		int height = options.containsKey("height") ? Integer.parseInt(options.get("height"))
+				: Math.max(state.getYExtent(), fittingHeight(Math.max(footmen, enemies), formation));
+		int sideWidth = sideWidth(Math.max(footmen, enemies), height, formation);
+		int width = options.containsKey("width") ? Integer.parseInt(options.get("width"))
+				: Math.max(state.getXExtent(), 2 * (sideWidth + MARGIN) + GAP);
+		generate(state, footmen, enemies, formation, width, height, seed);
+
+		out.mkdirs();
+		File map = new File(out, "rl_" + name + ".xml");
+		save(state, map);
+		File config = new File(out, name + "Config.xml");
+		writeConfig(new File(value(options, "baseConfig", "data/5fv5fConfig.xml")), config,
+				out.getPath().replace(File.separatorChar, '/') + "/" + map.getName(), episodes);
+		System.out.println("Wrote " + map + " (" + width + "x" + height + ") and " + config);
+	}
+
+	/**
+	 * Replaces the units of both players in a copy of a shipped map and resizes it.
+	 *
+	 * @param state The map to modify, usually loaded from a shipped map
+	 * @param footmen Number of footmen for player 0
+	 * @param enemies Number of footmen for player 1
+	 * @param formation columns, block or scattered
+	 * @param width The map's xExtent
+	 * @param height The map's yExtent
+	 * @param seed Seed for the scattered formation
+	 */
+	static void generate(XmlState state, int footmen, int enemies, String formation, int width, int height,
+			long seed) {
+		int sideWidth = (width - GAP) / 2 - MARGIN;
+		if (sideWidth < 1 || sideWidth(Math.max(footmen, enemies), height, formation) > sideWidth) {
+			throw new IllegalArgumentException(footmen + " and " + enemies + " footmen in " + formation
+					+ " formation do not fit a " + width + "x" + height + " map");
+		}
+		Random random = new Random(seed);
+		boolean[][] taken = new boolean[width][height];
+		int nextId = 0;
+		for (XmlPlayer player : state.getPlayer()) {
+			List<XmlUnit> units = player.getUnit();
+			if (units.isEmpty()) {
+				throw new IllegalArgumentException("Player " + player.getID() + " has no footman to copy");
+			}
+			XmlUnit footman = units.get(0);
+			boolean left = player.getID() == 0;
+			int count = left ? footmen : enemies;
+			units.clear();
+			for (int i = 0; i < count; i++) {
+				int[] position = position(formation, i, left, width, height, sideWidth, random, taken);
+				taken[position[0]][position[1]] = true;
+				XmlUnit unit = new XmlUnit();
+				unit.setID(nextId++);
+				unit.setCurrentHealth(footman.getCurrentHealth());
+				unit.setXPosition(position[0]);
+				unit.setYPosition(position[1]);
+				unit.setTemplateID(footman.getTemplateID());
+				unit.setCargoAmount(0);
+				unit.setProgressAmount(0);
+				units.add(unit);
+			}
+		}
+		state.setXExtent(width);
+		state.setYExtent(height);
+		state.setNextTargetID(nextId);
+	}
+
+	// Where footman i of a side stands. Our side faces right from the left edge, the enemy mirrors it.
+	private static int[] position(String formation, int i, boolean left, int width, int height, int sideWidth,
+			Random random, boolean[][] taken) {
+		int x;
+		int y;
+		if ("columns".equals(formation)) {
+			int perColumn = (height - 2 * MARGIN + 1) / 2;
+			// the first column is the front line, facing the enemy
+			x = sideWidth - 1 - 2 * (i / perColumn);
+			y = MARGIN + 2 * (i % perColumn);
+		} else if ("block".equals(formation)) {
+			int perColumn = height - 2 * MARGIN;
+			x = sideWidth - 1 - i / perColumn;
+			y = MARGIN + i % perColumn;
+		} else if ("scattered".equals(formation)) {
+			do {
+				x = random.nextInt(sideWidth);
+				y = MARGIN + random.nextInt(height - 2 * MARGIN);
+			} while (taken[left ? MARGIN + x : width - 1 - MARGIN - x][y]);
+		} else {
+			throw new IllegalArgumentException("Unknown formation " + formation);
+		}
+		return new int[] { left ? MARGIN + x : width - 1 - MARGIN - x, y };
+	}
+
+	// Columns of the map one side needs
+	private static int sideWidth(int count, int height, String formation) {
+		int rows = height - 2 * MARGIN;
+		if ("columns".equals(formation)) {
+			int perColumn = (rows + 1) / 2;
+			return 2 * ((count + perColumn - 1) / perColumn) - 1;
+		}
+		if ("block".equals(formation)) {
+			return (count + rows - 1) / rows;
+		}
+		// scattered footmen fill at most a quarter of their area
+		return (4 * count + rows - 1) / rows;
+	}
+
+	// A height that keeps large armies from becoming very wide
+	private static int fittingHeight(int count, String formation) {
+		int rows = (int) Math.ceil(Math.sqrt("columns".equals(formation) ? 2.0 * count : count));
+		return Math.min(2 * MARGIN + 2 * rows, 128);
+	}
+
+	// Copies the base configuration, pointing it at the new map and optionally changing the episode count
+	private static void writeConfig(File base, File config, String mapPath, String episodes) throws IOException {
+		String text = new String(Files.readAllBytes(base.toPath()), StandardCharsets.UTF_8);
+		text = text.replaceFirst("<Map>[^<]*</Map>", "<Map>" + mapPath + "</Map>");
+		if (episodes != null) {
+			text = text.replaceFirst("<Argument>\\d+</Argument>", "<Argument>" + episodes + "</Argument>");
+		}
+		Files.write(config.toPath(), text.getBytes(StandardCharsets.UTF_8));
+	}
+
+	private static String value(Map<String, String> options, String name, String defaultValue) {
+		String value = options.get(name);
+		return value == null ? defaultValue : value;
+	}
+
+	/**
+	 * Reads a map file. Every tool that loads maps goes through here, so JAXB is used in one place.
+	 */
+	static XmlState load(File map) throws JAXBException {
+		return (XmlState) JAXBContext.newInstance(XmlState.class).createUnmarshaller().unmarshal(map);
+	}
+
+	/**
+	 * Reads a map file into a state creator for new episodes.
+	 */
+	static StateCreator stateCreator(String map) throws JAXBException {
+		return new XmlStateCreator(load(new File(map)));
+	}
+
+	private static void save(XmlState state, File map) throws JAXBException {
+		Marshaller marshaller = JAXBContext.newInstance(XmlState.class).createMarshaller();
+		marshaller.setProperty(Marshaller.JAXB_FORMATTED_OUTPUT, Boolean.TRUE);
+		marshaller.marshal(state, map);
+	}
+}
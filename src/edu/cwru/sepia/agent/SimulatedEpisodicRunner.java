@@ -0,0 +1,188 @@
+package edu.cwru.sepia.agent;
+
+import java.util.Locale;
+
+import edu.cwru.sepia.environment.Environment;
+import edu.cwru.sepia.environment.model.Model;
+import edu.cwru.sepia.environment.model.history.DamageLog;
+import edu.cwru.sepia.environment.model.history.DeathLog;
+import edu.cwru.sepia.environment.model.history.History;
+import edu.cwru.sepia.environment.model.state.State;
+import edu.cwru.sepia.environment.model.state.StateCreator;
+import edu.cwru.sepia.experiment.Configuration;
+import edu.cwru.sepia.experiment.Runner;
+
+/**
+ * Episodic runner that trains an RLAgent against CombatSimulator instead of a SEPIA model.
+ *
+ * The map still comes from the configuration, but the configured opponent is replaced by the
+ * simulator's scripted footmen, and episodes are played on the calling thread with no Environment.
+ * The agent itself is unchanged and ends the run when it has played all of its episodes.
+ *
+ * To use it set the RunnerClass in the configuration file to edu.cwru.sepia.agent.SimulatedEpisodicRunner.
+ * Setting the experiment.simulator.ValidationEpisodes parameter to N first plays N episodes with the
+ * configured model and opponent and N in the simulator, each with its own copy of the agent starting
+ * from the same weights, and prints the per episode reward, length and combat statistics of both
+ * side by side before training starts. Setting experiment.evaluation.Threads to N plays the test
+ * rounds in simulators of their own on N separate threads while training continues (see TestEvaluator).
+ * With experiment.SaveAgents the agent saves a snapshot every experiment.EpisodesPerSave training
+ * episodes, which it resumes from when it is told to load its weights.
+ */
+public class SimulatedEpisodicRunner extends Runner {
+
+	public static final String VALIDATION_EPISODES = "experiment.simulator.ValidationEpisodes";
+
+	private static final String NUM_EPISODES = "experiment.NumEpisodes";
+	private static final String TIME_LIMIT = "environment.model.TimeLimit";
+	private static final int SEED = 6;
+
+	public SimulatedEpisodicRunner(Configuration configuration, StateCreator stateCreator, Agent[] agents) {
+		super(configuration, stateCreator, agents);
+	}
+
+	@Override
+	public void run() {
+		int learnerIndex = -1;
+		for (int i = 0; i < agents.length; i++) {
+			if (agents[i] instanceof RLAgent) {
+				learnerIndex = i;
+			}
+		}
+		if (learnerIndex < 0) {
+			throw new IllegalStateException("SimulatedEpisodicRunner needs an RLAgent player");
+		}
+		RLAgent learner = (RLAgent) agents[learnerIndex];
+		int timeLimit = configuration.getInt(TIME_LIMIT, 100000);
+
+		int validationEpisodes = configuration.getInt(VALIDATION_EPISODES, 0);
+		if (validationEpisodes > 0) {
+			try {
+				validate(learnerIndex, validationEpisodes, timeLimit);
+			} catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
+				return;
+			}
+		}
+
+		int evaluationThreads = configuration.getInt(TestEvaluator.THREADS, 0);
+		if (evaluationThreads > 0) {
+			learner.setEvaluator(new TestEvaluator(learner,
+					TestEvaluator.simulatedArena(stateCreator, learner.getPlayerNumber(), timeLimit), evaluationThreads));
+		}
+
+		learner.saveSnapshots(configuration);
+		CombatSimulator simulator = new CombatSimulator(stateCreator, learner.getPlayerNumber(), SEED, timeLimit);
+		int numEpisodes = configuration.getInt(NUM_EPISODES, Integer.MAX_VALUE);
+		for (int episode = 0; episode < numEpisodes; episode++) {
+			simulator.runEpisode(learner);
+		}
+	}
+
+	// Plays the same number of episodes in SEPIA and in the simulator and prints how they compare
+	private void validate(int learnerIndex, int episodes, int timeLimit) throws InterruptedException {
+		RLAgent learner = (RLAgent) agents[learnerIndex];
+		int player = learner.getPlayerNumber();
+
+		RLAgent sepiaProbe = probe(learner);
+		Agent[] sepiaAgents = new Agent[agents.length];
+		for (int i = 0; i < agents.length; i++) {
+			sepiaAgents[i] = i == learnerIndex ? sepiaProbe : ParallelEpisodicRunner.copy(agents[i], configuration);
+		}
+		Model model = ParallelEpisodicRunner.createModel(configuration, stateCreator, SEED);
+		Environment environment = new Environment(sepiaAgents, model, SEED);
+		EpisodeStats sepia = new EpisodeStats();
+		long start = System.nanoTime();
+		for (int i = 0; i < episodes; i++) {
+			environment.runEpisode();
+			sepia.add(sepiaProbe, model.getState(), model.getHistory(), player);
+		}
+		sepia.nanos = System.nanoTime() - start;
+
+		RLAgent simulatorProbe = probe(learner);
+		CombatSimulator simulator = new CombatSimulator(stateCreator, player, SEED, timeLimit);
+		EpisodeStats simulated = new EpisodeStats();
+		start = System.nanoTime();
+		for (int i = 0; i < episodes; i++) {
+			simulator.runEpisode(simulatorProbe);
+			simulated.add(simulatorProbe, simulator.getState(), simulator.getHistory(), player);
+		}
+		simulated.nanos = System.nanoTime() - start;
+
+		System.out.println();
+		System.out.println("Simulator validation over " + episodes + " episodes (mean and standard deviation)");
+		System.out.println(String.format(Locale.ROOT, "%-16s %12s %10s %12s %10s", "", "SEPIA", "", "simulator", ""));
+		for (int metric = 0; metric < EpisodeStats.METRICS.length; metric++) {
+			System.out.println(String.format(Locale.ROOT, "%-16s %12.2f %10.2f %12.2f %10.2f",
+					EpisodeStats.METRICS[metric], sepia.mean(metric), sepia.deviation(metric),
+					simulated.mean(metric), simulated.deviation(metric)));
+		}
+		System.out.println(String.format(Locale.ROOT, "%-16s %12.1f %10s %12.1f", "episodes/sec",
+				episodes / (sepia.nanos / 1e9), "", episodes / (simulated.nanos / 1e9)));
+		System.out.println();
+	}
+
+	// A worker that plays without saving anything, learning from its own copy of the learner's weights
+	private RLAgent probe(RLAgent learner) {
+		RLAgent probe = new RLAgent(learner, Integer.MAX_VALUE / 10 * 10, SEED, false);
+		probe.weights = learner.weights.clone();
+		probe.setConfiguration(configuration);
+		return probe;
+	}
+
+	// Per episode measurements of one way of playing the validation episodes
+	private static final class EpisodeStats {
+
+		static final String[] METRICS = { "reward", "turns", "commands", "damage dealt", "damage taken",
+				"footmen lost", "enemies killed", "won" };
+
+		private final double[] sums = new double[METRICS.length];
+		private final double[] squares = new double[METRICS.length];
+		private int episodes;
+		long nanos;
+
+		void add(RLAgent probe, State state, History history, int player) {
+			History.HistoryView historyView = history.getView(player);
+			double commands = 0;
+			double dealt = 0;
+			double taken = 0;
+			double lost = 0;
+			double killed = 0;
+			for (int turn = 0; turn < state.getTurnNumber(); turn++) {
+				commands += historyView.getCommandsIssued(player, turn).size();
+				for (DamageLog damageLog : historyView.getDamageLogs(turn)) {
+					if (damageLog.getAttackerController() == player) {
+						dealt += damageLog.getDamage();
+					} else if (damageLog.getDefenderController() == player) {
+						taken += damageLog.getDamage();
+					}
+				}
+				for (DeathLog deathLog : historyView.getDeathLogs(turn)) {
+					if (deathLog.getController() == player) {
+						lost++;
+					} else {
+						killed++;
+					}
+				}
+			}
+			boolean won = state.getUnits(player).size() > 0;
+			record(probe.episodeReward(), state.getTurnNumber(), commands, dealt, taken, lost, killed, won ? 1 : 0);
+		}
+
+		private void record(double... values) {
+			for (int i = 0; i < values.length; i++) {
+				sums[i] += values[i];
+				squares[i] += values[i] * values[i];
+			}
+			episodes++;
+		}
+
+		double mean(int metric) {
+			return sums[metric] / episodes;
+		}
+
+		double deviation(int metric) {
+			double mean = mean(metric);
+			return Math.sqrt(Math.max(0, squares[metric] / episodes - mean * mean));
+		}
+	}
+}
@@ -0,0 +1,218 @@
+package edu.cwru.sepia.agent;
+
+import java.io.Serializable;
+import java.util.Arrays;
+
+/**
+ * Uniform grid index over unit positions for nearest neighbour and radius queries by Chebyshev
+ * distance, the distance footmen move and attack by.
+ *
+ * The map is split into square buckets of cellSize tiles. Each bucket holds a doubly linked list of
+ * the units standing in it, kept in id indexed int arrays, so moving or removing a unit is O(1) and
+ * the index never allocates once it has seen the largest unit id. A query only visits the buckets
+ * around the query point, so its cost depends on how crowded that area is, not on how many units
+ * there are.
+ */
+final class SpatialGrid implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	private final int cellSize;
+	private int columns;
+	private int rows;
+	// first unit of each bucket, -1 if empty
+	private int[] head = new int[0];
+	// per unit id; bucketOf is -1 if the unit is not in the index
+	private int[] next = new int[0];
+	private int[] previous = new int[0];
+	private int[] bucketOf = new int[0];
+	private int[] xOf = new int[0];
+	private int[] yOf = new int[0];
+	private int size;
+
+	// distances of the current k nearest candidates, reused between queries
+	private int[] bestDistances = new int[0];
+
+	SpatialGrid(int cellSize) {
+		this.cellSize = cellSize;
+	}
+
+	/**
+	 * Empties the index and sizes it for a map of the given extent.
+	 */
+	void reset(int xExtent, int yExtent) {
+		columns = Math.max(1, (xExtent + cellSize - 1) / cellSize);
+		rows = Math.max(1, (yExtent + cellSize - 1) / cellSize);
+		if (head.length < columns * rows) {
+			head = new int[columns * rows];
+		}
+		Arrays.fill(head, -1);
+		Arrays.fill(bucketOf, -1);
+		size = 0;
+	}
+
+	int size() {
+		return size;
+	}
+
+	boolean contains(int id) {
+		return 0 <= id && id < bucketOf.length && bucketOf[id] >= 0;
+	}
+
+	/**
+	 * Adds a unit at (x, y), or moves it there if it is already in the index.
+	 */
+	void put(int id, int x, int y) {
+		if (id >= bucketOf.length) {
+			grow(id);
+		}
+		int bucket = bucket(x, y);
+		xOf[id] = x;
+		yOf[id] = y;
+		if (bucketOf[id] == bucket) {
+			return;
+		}
+		if (bucketOf[id] >= 0) {
+			unlink(id);
+		} else {
+			size++;
+		}
+		bucketOf[id] = bucket;
+		previous[id] = -1;
+		next[id] = head[bucket];
+		if (head[bucket] >= 0) {
+			previous[head[bucket]] = id;
+		}
+		head[bucket] = id;
+	}
+
+	/**
+	 * Removes a unit. Does nothing if it is not in the index.
+	 */
+	void remove(int id) {
+		if (!contains(id)) {
+			return;
+		}
+		unlink(id);
+		bucketOf[id] = -1;
+		size--;
+	}
+
+	/**
+	 * Finds the units closest to (x, y), nearest first, ties broken by the lower id.
+	 *
+	 * @param k The maximum number of units to find
+	 * @param out Receives the unit ids, must hold at least k entries
+	 * @return The number of units found, k unless the index holds fewer
+	 */
+	int nearest(int x, int y, int k, int[] out) {
+		if (bestDistances.length < k) {
+			bestDistances = new int[k];
+		}
+		int found = 0;
+		int centerColumn = clamp(x / cellSize, columns);
+		int centerRow = clamp(y / cellSize, rows);
+		int maxRing = Math.max(Math.max(centerColumn, columns - 1 - centerColumn),
+				Math.max(centerRow, rows - 1 - centerRow));
+		for (int ring = 0; ring <= maxRing; ring++) {
+			// units in this ring or further out are at least this far away
+			if (found == k && bestDistances[k - 1] < (ring - 1) * cellSize + 1) {
+				break;
+			}
+			for (int row = centerRow - ring; row <= centerRow + ring; row++) {
+				if (row < 0 || row >= rows) {
+					continue;
+				}
+				boolean edge = row == centerRow - ring || row == centerRow + ring;
+				int step = edge ? 1 : 2 * ring;
+				for (int column = centerColumn - ring; column <= centerColumn + ring; column += Math.max(1, step)) {
+					if (column < 0 || column >= columns) {
+						continue;
+					}
+					for (int id = head[row * columns + column]; id >= 0; id = next[id]) {
+						found = offer(id, distance(id, x, y), k, found, out);
+					}
+				}
+			}
+		}
+		return found;
+	}
+
+	/**
+	 * Finds every unit within radius of (x, y) by Chebyshev distance, in no particular order.
+	 *
+	 * @param out Receives the unit ids. Units past its length are not reported.
+	 * @return The number of ids written to out
+	 */
+	int within(int x, int y, int radius, int[] out) {
+		int count = 0;
+		int firstColumn = clamp((x - radius) / cellSize, columns);
+		int lastColumn = clamp((x + radius) / cellSize, columns);
+		int firstRow = clamp((y - radius) / cellSize, rows);
+		int lastRow = clamp((y + radius) / cellSize, rows);
+		for (int row = firstRow; row <= lastRow; row++) {
+			for (int column = firstColumn; column <= lastColumn; column++) {
+				for (int id = head[row * columns + column]; id >= 0; id = next[id]) {
+					if (distance(id, x, y) <= radius && count < out.length) {
+						out[count++] = id;
+					}
+				}
+			}
+		}
+		return count;
+	}
+
+	// Inserts a candidate into the sorted best k, returning the new number of candidates
+	private int offer(int id, int distance, int k, int found, int[] out) {
+		int position = found;
+		while (position > 0 && (bestDistances[position - 1] > distance
+				|| (bestDistances[position - 1] == distance && out[position - 1] > id))) {
+			position--;
+		}
+		if (position >= k) {
+			return found;
+		}
+		int last = Math.min(found, k - 1);
+		for (int i = last; i > position; i--) {
+			bestDistances[i] = bestDistances[i - 1];
+			out[i] = out[i - 1];
+		}
+		bestDistances[position] = distance;
+		out[position] = id;
+		return Math.min(found + 1, k);
+	}
+
+	private int distance(int id, int x, int y) {
+		return Math.max(Math.abs(xOf[id] - x), Math.abs(yOf[id] - y));
+	}
+
+	private int bucket(int x, int y) {
+		return clamp(y / cellSize, rows) * columns + clamp(x / cellSize, columns);
+	}
+
+	private static int clamp(int value, int limit) {
+		return value < 0 ? 0 : value >= limit ? limit - 1 : value;
+	}
+
+	private void unlink(int id) {
+		if (previous[id] >= 0) {
+			next[previous[id]] = next[id];
+		} else {
+			head[bucketOf[id]] = next[id];
+		}
+		if (next[id] >= 0) {
+			previous[next[id]] = previous[id];
+		}
+	}
+
+	private void grow(int id) {
+		int length = Math.max(id + 1, bucketOf.length * 2);
+		int oldLength = bucketOf.length;
+		next = Arrays.copyOf(next, length);
+		previous = Arrays.copyOf(previous, length);
+		xOf = Arrays.copyOf(xOf, length);
+		yOf = Arrays.copyOf(yOf, length);
+		bucketOf = Arrays.copyOf(bucketOf, length);
+		Arrays.fill(bucketOf, oldLength, length, -1);
+	}
+}
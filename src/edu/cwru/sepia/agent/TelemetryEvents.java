@@ -0,0 +1,154 @@
+package edu.cwru.sepia.agent;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Java Flight Recorder events for RLAgent. The event types are defined at runtime through
+ * jdk.jfr.EventFactory, found by reflection, so the agent compiles and runs on JDKs without JFR such
+ * as Java 8 before 8u262, where every method here does nothing. Events are only created while a
+ * recording has them enabled.
+ */
+final class TelemetryEvents {
+
+	// null when the JVM has no JFR
+	private static final EventKind TURN;
+	private static final EventKind EPISODE;
+	// jdk.jfr.Event.set(int, Object) and commit(), taking the event as an Object
+	private static final MethodHandle SET;
+	private static final MethodHandle COMMIT;
+
+	static {
+		EventKind turn = null;
+		EventKind episode = null;
+		MethodHandle set = null;
+		MethodHandle commit = null;
+		try {
+			Class<?> eventClass = Class.forName("jdk.jfr.Event");
+			MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+			set = lookup.unreflect(eventClass.getMethod("set", int.class, Object.class))
+					.asType(MethodType.methodType(void.class, Object.class, int.class, Object.class));
+			commit = lookup.unreflect(eventClass.getMethod("commit"))
+					.asType(MethodType.methodType(void.class, Object.class));
+			turn = new EventKind("edu.cwru.sepia.agent.Turn", "Agent Turn", "One middleStep of the learning agent",
+					field(int.class, "turnNumber", annotation("Label", "Turn Number")),
+					field(long.class, "nanos", annotation("Label", "Duration"), annotation("Timespan", "NANOSECONDS")),
+					field(int.class, "qEvaluations", annotation("Label", "Q Evaluations")),
+					field(int.class, "weightUpdates", annotation("Label", "Weight Updates")),
+					field(boolean.class, "event", annotation("Label", "Event Happened")));
+			episode = new EventKind("edu.cwru.sepia.agent.Episode", "Agent Episode",
+					"One finished episode of the learning agent",
+					field(boolean.class, "testing", annotation("Label", "Testing")),
+					field(int.class, "turns", annotation("Label", "Turns")),
+					field(int.class, "weightUpdates", annotation("Label", "Weight Updates")),
+					field(double.class, "updateMagnitude", annotation("Label", "Update Magnitude"),
+							annotation("Description", "Sum of the L2 norms of the weight updates")));
+		} catch (ReflectiveOperationException | RuntimeException ex) {
+			// no JFR, or not one this code understands
+			turn = null;
+			episode = null;
+		}
+		TURN = turn;
+		EPISODE = episode;
+		SET = set;
+		COMMIT = commit;
+	}
+
+	private TelemetryEvents() {
+	}
+
+	static void turn(int turnNumber, long nanos, int qEvaluations, int weightUpdates, boolean event) {
+		if (TURN == null || !TURN.enabled()) {
+			return;
+		}
+		Object turn = TURN.newEvent();
+		set(turn, 0, turnNumber);
+		set(turn, 1, nanos);
+		set(turn, 2, qEvaluations);
+		set(turn, 3, weightUpdates);
+		set(turn, 4, event);
+		commit(turn);
+	}
+
+	static void episode(boolean testing, int turns, int weightUpdates, double updateMagnitude) {
+		if (EPISODE == null || !EPISODE.enabled()) {
+			return;
+		}
+		Object episode = EPISODE.newEvent();
+		set(episode, 0, testing);
+		set(episode, 1, turns);
+		set(episode, 2, weightUpdates);
+		set(episode, 3, updateMagnitude);
+		commit(episode);
+	}
+
+	private static void set(Object event, int index, Object value) {
+		try {
+			SET.invokeExact(event, index, value);
+		} catch (Throwable ex) {
+			throw new IllegalStateException(ex);
+		}
+	}
+
+	private static void commit(Object event) {
+		try {
+			COMMIT.invokeExact(event);
+		} catch (Throwable ex) {
+			throw new IllegalStateException(ex);
+		}
+	}
+
+	// A jdk.jfr.AnnotationElement for the jdk.jfr annotation with the given simple name
+	private static Object annotation(String type, Object value) throws ReflectiveOperationException {
+		return Class.forName("jdk.jfr.AnnotationElement").getConstructor(Class.class, Object.class)
+				.newInstance(Class.forName("jdk.jfr." + type), value);
+	}
+
+	// A jdk.jfr.ValueDescriptor for one field of an event
+	private static Object field(Class<?> type, String name, Object... annotations) throws ReflectiveOperationException {
+		return Class.forName("jdk.jfr.ValueDescriptor").getConstructor(Class.class, String.class, List.class)
+				.newInstance(type, name, Arrays.asList(annotations));
+	}
+
+	/**
+	 * One event type made by jdk.jfr.EventFactory, with the fields in the order given.
+	 */
+	private static final class EventKind {
+		// EventType.isEnabled() and EventFactory.newEvent(), bound to this kind
+		private final MethodHandle enabled;
+		private final MethodHandle newEvent;
+
+		EventKind(String name, String label, String description, Object... fields) throws ReflectiveOperationException {
+			List<Object> annotations = Arrays.asList(annotation("Name", name), annotation("Label", label),
+					annotation("Category", new String[] { "SEPIA", "RLAgent" }),
+					annotation("Description", description));
+			Class<?> factoryClass = Class.forName("jdk.jfr.EventFactory");
+			Object factory = factoryClass.getMethod("create", List.class, List.class).invoke(null, annotations,
+					Arrays.asList(fields));
+			Object type = factoryClass.getMethod("getEventType").invoke(factory);
+			MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+			enabled = lookup.unreflect(Class.forName("jdk.jfr.EventType").getMethod("isEnabled")).bindTo(type);
+			newEvent = lookup.unreflect(factoryClass.getMethod("newEvent")).bindTo(factory)
+					.asType(MethodType.methodType(Object.class));
+		}
+
+		boolean enabled() {
+			try {
+				return (boolean) enabled.invokeExact();
+			} catch (Throwable ex) {
+				throw new IllegalStateException(ex);
+			}
+		}
+
+		Object newEvent() {
+			try {
+				return (Object) newEvent.invokeExact();
+			} catch (Throwable ex) {
+				throw new IllegalStateException(ex);
+			}
+		}
+	}
+}
@@ -0,0 +1,149 @@
+package edu.cwru.sepia.agent;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import edu.cwru.sepia.environment.Environment;
+import edu.cwru.sepia.environment.model.state.StateCreator;
+import edu.cwru.sepia.experiment.Configuration;
+
+/**
+ * Plays RLAgent's rounds of test episodes in the background while training continues.
+ *
+ * After every 10 training episodes the agent hands over its weights. The evaluator copies them into
+ * an immutable snapshot numbered by the order it was taken in, and one of its threads plays the 5
+ * greedy test episodes of that round with a probe agent holding the snapshot, in an environment of its
+ * own. Rounds can finish out of order, so results are held back until every earlier snapshot has been
+ * scored and then recorded in snapshot order: the result of snapshot v is the v-th entry the agent
+ * adds to its test results, exactly where a sequential run would have put it. A round that fails is
+ * reported and recorded as NaN, so it still takes up its entry and the rounds after it stay at theirs.
+ *
+ * Runners that support it enable it with the experiment.evaluation.Threads parameter.
+ */
+final class TestEvaluator {
+
+	static final String THREADS = "experiment.evaluation.Threads";
+
+	static final int TEST_EPISODES = 5;
+	private static final long SEED = 7;
+
+	/**
+	 * Plays episodes with a probe agent somewhere other than the training environment. Called on the
+	 * evaluation threads.
+	 */
+	interface Arena {
+		void play(RLAgent probe, int episodes, long seed) throws InterruptedException;
+	}
+
+	private final RLAgent learner;
+	private final Arena arena;
+	private final ExecutorService executor;
+	// the next snapshot version to hand out and the next one to record
+	private int nextVersion;
+	private int nextRecorded;
+	// finished rounds waiting for an earlier one, by snapshot version
+	private final Map<Integer, Double> finished = new HashMap<Integer, Double>();
+
+	TestEvaluator(RLAgent learner, Arena arena, int threads) {
+		this.learner = learner;
+		this.arena = arena;
+		this.executor = Executors.newFixedThreadPool(Math.max(1, threads), new ThreadFactory() {
+			private int count;
+
+			@Override
+			public synchronized Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "test-evaluator-" + count++);
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	/**
+	 * An arena that plays against copies of the configured opponents in a new SEPIA environment.
+	 */
+	static Arena sepiaArena(final Configuration configuration, final StateCreator stateCreator,
+			final Agent[] agents, final int learnerIndex) {
+		return new Arena() {
+			@Override
+			public void play(RLAgent probe, int episodes, long seed) throws InterruptedException {
+				Agent[] arenaAgents = new Agent[agents.length];
+				for (int i = 0; i < agents.length; i++) {
+					arenaAgents[i] = i == learnerIndex ? probe : ParallelEpisodicRunner.copy(agents[i], configuration);
+				}
+				Environment environment = new Environment(arenaAgents,
+						ParallelEpisodicRunner.createModel(configuration, stateCreator, (int) seed), (int) seed);
+				for (int i = 0; i < episodes; i++) {
+					environment.runEpisode();
+				}
+			}
+		};
+	}
+
+	/**
+	 * An arena that plays in a new CombatSimulator.
+	 */
+	static Arena simulatedArena(final StateCreator stateCreator, final int player, final int maxTurns) {
+		return new Arena() {
+			@Override
+			public void play(RLAgent probe, int episodes, long seed) {
+				CombatSimulator simulator = new CombatSimulator(stateCreator, player, seed, maxTurns);
+				for (int i = 0; i < episodes; i++) {
+					simulator.runEpisode(probe);
+				}
+			}
+		};
+	}
+
+	/**
+	 * Snapshots the weights and queues a round of testing with them. Returns immediately.
+	 */
+	void submit(double[] weights) {
+		final double[] snapshot = weights.clone();
+		final int version;
+		synchronized (this) {
+			version = nextVersion++;
+		}
+		executor.execute(new Runnable() {
+			@Override
+			public void run() {
+				double average = Double.NaN;
+				try {
+					RLAgent probe = RLAgent.evaluationAgent(learner, snapshot, SEED + version);
+					arena.play(probe, TEST_EPISODES, SEED + version);
+					average = probe.averageTestReward();
+				} catch (InterruptedException ex) {
+					Thread.currentThread().interrupt();
+				} catch (RuntimeException ex) {
+					System.err.println("Failed to evaluate weight snapshot " + version + ". Reason: " + ex);
+				}
+				finish(version, average);
+			}
+		});
+	}
+
+	/**
+	 * Waits for every queued round of testing and stops the evaluation threads.
+	 */
+	void close() {
+		executor.shutdown();
+		try {
+			executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	// Records a finished round along with any later ones that were waiting for it
+	private synchronized void finish(int version, double average) {
+		finished.put(version, average);
+		while (finished.containsKey(nextRecorded)) {
+			learner.recordTestRound(finished.remove(nextRecorded));
+			nextRecorded++;
+		}
+	}
+}
@@ -0,0 +1,119 @@
+package edu.cwru.sepia.agent;
+
+import java.io.Serializable;
+
+/**
+ * Hashed tile coding of a small vector of raw attributes into a large sparse binary feature vector.
+ *
+ * Each of the tilings lays a grid over the attributes, offset from the other tilings by a fraction of
+ * a tile, and every grid cell is one binary feature. A tiling contributes one tile covering all of the
+ * attributes together and one per attribute on its own, so the value function can learn both their
+ * interactions and their separate effects. Tiles are hashed into dimension weights rather than
+ * enumerated, so the number of weights is chosen freely and does not grow with the number of tiles.
+ *
+ * An attribute vector activates tilings * (attributes + 1) tiles whatever the dimension, and its value
+ * is the sum of their weights. Computing the tiles and the value therefore costs O(active tiles), not
+ * O(dimension). The tile weights may sit behind other weights in the same array, starting at
+ * firstWeight.
+ */
+final class TileCoder implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	private final double[] tileWidths;
+	private final int tilings;
+	private final int dimension;
+	private final int firstWeight;
+	private final double learningRate;
+
+	/**
+	 * @param tileWidths The width of a tile along each raw attribute
+	 * @param tilings Number of offset tilings
+	 * @param dimension Number of weights the tiles are hashed into
+	 * @param firstWeight Index of the first tile weight in the weight array
+	 * @param learningRate Step size of an update spread over all active tiles, so each tile moves by
+	 *        learningRate / activeTiles() times the TD error
+	 */
+	TileCoder(double[] tileWidths, int tilings, int dimension, int firstWeight, double learningRate) {
+		if (tilings < 1 || dimension < 1) {
+			throw new IllegalArgumentException("Tile coding needs at least one tiling and one weight");
+		}
+		this.tileWidths = tileWidths.clone();
+		this.tilings = tilings;
+		this.dimension = dimension;
+		this.firstWeight = firstWeight;
+		this.learningRate = learningRate;
+	}
+
+	/**
+	 * @return the number of tile weights
+	 */
+	int dimension() {
+		return dimension;
+	}
+
+	/**
+	 * @return the number of tiles every attribute vector activates
+	 */
+	int activeTiles() {
+		return tilings * (tileWidths.length + 1);
+	}
+
+	/**
+	 * @return the step per tile and unit of TD error
+	 */
+	double stepSize() {
+		return learningRate / activeTiles();
+	}
+
+	/**
+	 * Writes the weight indices of the tiles active for the attributes into activeTiles() entries of
+	 * tiles starting at from. The same index may appear more than once when tiles collide.
+	 */
+	void tiles(double[] attributes, int[] tiles, int from) {
+		int attributeCount = tileWidths.length;
+		int count = from;
+		for (int tiling = 0; tiling < tilings; tiling++) {
+			int joint = mix(tiling, attributeCount);
+			for (int i = 0; i < attributeCount; i++) {
+				int coordinate = coordinate(attributes[i], i, tiling);
+				joint = mix(joint, coordinate);
+				tiles[count++] = index(mix(mix(tiling, i), coordinate));
+			}
+			tiles[count++] = index(joint);
+		}
+	}
+
+	/**
+	 * @return the sum of the weights of the activeTiles() tiles in tiles starting at from
+	 */
+	double value(double[] weights, int[] tiles, int from) {
+		double sum = 0.0;
+		for (int i = from; i < from + activeTiles(); i++) {
+			sum += weights[tiles[i]];
+		}
+		return sum;
+	}
+
+	// The tile an attribute falls in for a tiling. Each attribute shifts the tilings by a different odd
+	// multiple of 1/tilings of a tile, so the tilings are not all offset along the diagonal.
+	private int coordinate(double attribute, int i, int tiling) {
+		double offset = ((tiling * (2 * i + 1)) % tilings) / (double) tilings;
+		return (int) Math.floor(attribute / tileWidths[i] + offset);
+	}
+
+	private int index(int hash) {
+		return firstWeight + (hash & Integer.MAX_VALUE) % dimension;
+	}
+
+	// Combines a hash with a value and scrambles the bits (the MurmurHash3 finalizer)
+	private static int mix(int hash, int value) {
+		int h = hash * 0x9E3779B1 + value;
+		h ^= h >>> 16;
+		h *= 0x85EBCA6B;
+		h ^= h >>> 13;
+		h *= 0xC2B2AE35;
+		h ^= h >>> 16;
+		return h;
+	}
+}
@@ -0,0 +1,193 @@
+package edu.cwru.sepia.agent;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Instrumentation of RLAgent's turn loop and episodes.
+ *
+ * Per turn it records the middleStep latency in a power of two histogram, the number of Q-value
+ * evaluations, weight updates and their magnitude, and whether an event happened. At the end of an
+ * episode, once flushInterval seconds have passed, a summary of everything since the previous flush
+ * is appended to the metrics file as one CSV line. When the JVM has Java Flight Recorder each turn
+ * and episode is also emitted as a JFR event (see TelemetryEvents).
+ *
+ * Not thread safe. In a parallel run only one worker is instrumented.
+ */
+final class TrainingTelemetry {
+
+	private static final String HEADER = "time_ms,episodes,episodes_per_sec,turns,turns_per_episode,"
+			+ "turn_mean_us,turn_p50_us,turn_p99_us,turn_max_us,q_evals_per_turn,weight_updates,"
+			+ "mean_update_magnitude,event_rate";
+
+	private final File file;
+	private final long flushIntervalNanos;
+	private final long startNanos = System.nanoTime();
+	private BufferedWriter writer;
+	private long lastFlushNanos = startNanos;
+
+	// bucket i counts turns that took [2^i, 2^(i+1)) nanoseconds
+	private final long[] latencyHistogram = new long[64];
+
+	// current turn
+	private long turnStart;
+	private int turnQEvaluations;
+	private int turnUpdates;
+	private boolean turnEvent;
+
+	// current episode
+	private int episodeTurns;
+	private int episodeUpdates;
+	private double episodeMagnitude;
+
+	// since the last flush
+	private int episodes;
+	private long turns;
+	private long turnNanos;
+	private long maxTurnNanos;
+	private long qEvaluations;
+	private long updates;
+	private double updateMagnitude;
+	private long events;
+
+	TrainingTelemetry(File file, double flushIntervalSeconds) {
+		this.file = file;
+		this.flushIntervalNanos = (long) (flushIntervalSeconds * 1e9);
+	}
+
+	void turnStarted() {
+		turnStart = System.nanoTime();
+		turnQEvaluations = 0;
+		turnUpdates = 0;
+		turnEvent = false;
+	}
+
+	void qEvaluations(int count) {
+		turnQEvaluations += count;
+	}
+
+	void event() {
+		turnEvent = true;
+	}
+
+	/**
+	 * Records a weight update of step * features.
+	 */
+	void weightUpdate(double step, double[] features) {
+		double norm = 0;
+		for (double feature : features) {
+			norm += feature * feature;
+		}
+		weightUpdate(Math.abs(step) * Math.sqrt(norm));
+	}
+
+	/**
+	 * Records a weight update of the given magnitude.
+	 */
+	void weightUpdate(double magnitude) {
+		turnUpdates++;
+		episodeMagnitude += magnitude;
+		updateMagnitude += magnitude;
+	}
+
+	void turnFinished(int turnNumber) {
+		long nanos = System.nanoTime() - turnStart;
+		latencyHistogram[63 - Long.numberOfLeadingZeros(Math.max(1, nanos))]++;
+		turns++;
+		turnNanos += nanos;
+		maxTurnNanos = Math.max(maxTurnNanos, nanos);
+		qEvaluations += turnQEvaluations;
+		updates += turnUpdates;
+		if (turnEvent) {
+			events++;
+		}
+		episodeTurns++;
+		episodeUpdates += turnUpdates;
+		TelemetryEvents.turn(turnNumber, nanos, turnQEvaluations, turnUpdates, turnEvent);
+	}
+
+	void episodeFinished(boolean testing) {
+		episodes++;
+		TelemetryEvents.episode(testing, episodeTurns, episodeUpdates, episodeMagnitude);
+		episodeTurns = 0;
+		episodeUpdates = 0;
+		episodeMagnitude = 0;
+		if (System.nanoTime() - lastFlushNanos >= flushIntervalNanos) {
+			flush();
+		}
+	}
+
+	/**
+	 * Writes whatever has been recorded since the last flush and closes the metrics file.
+	 */
+	void close() {
+		if (episodes > 0) {
+			flush();
+		}
+		if (writer != null) {
+			try {
+				writer.close();
+			} catch (IOException ex) {
+				System.err.println("Failed to close telemetry file. Reason: " + ex.getMessage());
+			}
+			writer = null;
+		}
+	}
+
+	private void flush() {
+		long now = System.nanoTime();
+		double seconds = (now - lastFlushNanos) / 1e9;
+		String line = String.format(Locale.ROOT, "%d,%d,%.3f,%d,%.2f,%.2f,%.2f,%.2f,%.2f,%.2f,%d,%.6g,%.4f",
+				(now - startNanos) / 1000000, episodes, episodes / seconds, turns,
+				episodes == 0 ? 0.0 : (double) turns / episodes,
+				turns == 0 ? 0.0 : turnNanos / 1e3 / turns,
+				percentile(0.5) / 1e3, percentile(0.99) / 1e3, maxTurnNanos / 1e3,
+				turns == 0 ? 0.0 : (double) qEvaluations / turns, updates,
+				updates == 0 ? 0.0 : updateMagnitude / updates,
+				turns == 0 ? 0.0 : (double) events / turns);
+		try {
+			if (writer == null) {
+				file.getAbsoluteFile().getParentFile().mkdirs();
+				boolean exists = file.exists() && file.length() > 0;
+				writer = new BufferedWriter(new FileWriter(file, true));
+				if (!exists) {
+					writer.write(HEADER);
+					writer.newLine();
+				}
+			}
+			writer.write(line);
+			writer.newLine();
+			writer.flush();
+		} catch (IOException ex) {
+			System.err.println("Failed to write telemetry. Reason: " + ex.getMessage());
+		}
+
+		lastFlushNanos = now;
+		Arrays.fill(latencyHistogram, 0);
+		episodes = 0;
+		turns = 0;
+		turnNanos = 0;
+		maxTurnNanos = 0;
+		qEvaluations = 0;
+		updates = 0;
+		updateMagnitude = 0;
+		events = 0;
+	}
+
+	// Upper bound of the histogram bucket holding the given fraction of the turns
+	private double percentile(double fraction) {
+		long rank = (long) Math.ceil(fraction * turns);
+		long seen = 0;
+		for (int i = 0; i < latencyHistogram.length; i++) {
+			seen += latencyHistogram[i];
+			if (seen >= rank && seen > 0) {
+				return Math.pow(2, i + 1);
+			}
+		}
+		return 0;
+	}
+}
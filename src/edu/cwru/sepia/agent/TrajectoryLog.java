@@ -0,0 +1,164 @@
+package edu.cwru.sepia.agent;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+/**
+ * Append-only binary log of the training turns RLAgent plays, for learning from them offline (see
+ * OfflineTrainer) without simulating the games again.
+ *
+ * Every training turn after the first adds one fixed size record per living footman: its id, its
+ * target, flags, the discounted reward it got this turn, the cumulative reward the weights were updated
+ * towards if an event happened, and the features of the footman and its target. Each episode ends with
+ * a record whose flags are EPISODE_END. Test episodes are not logged.
+ *
+ * A worker fills an Episode of its own and appends it in one write when the episode ends, so parallel
+ * workers can share the log and episodes are never interleaved.
+ *
+ * File layout, little endian: magic, format, number of features, record size, then the records. A
+ * record is footman, target and flags (ints), reward and update target (doubles), then the features.
+ */
+final class TrajectoryLog {
+
+	static final int MAGIC = 0x524C5452;
+	static final int FORMAT = 1;
+	static final int HEADER_BYTES = 16;
+
+	// record flags
+	static final int EVENT = 1;
+	static final int EPISODE_END = 2;
+
+	// offsets of the record fields
+	static final int FOOTMAN = 0;
+	static final int TARGET = 4;
+	static final int FLAGS = 8;
+	static final int REWARD = 12;
+	static final int UPDATE_TARGET = 20;
+	static final int FEATURES = 28;
+
+	private final File file;
+	private FileChannel channel;
+
+	TrajectoryLog(File file) {
+		this.file = file;
+	}
+
+	/**
+	 * @return the size in bytes of a record with the given number of features
+	 */
+	static int recordBytes(int numFeatures) {
+		return FEATURES + 8 * numFeatures;
+	}
+
+	/**
+	 * The records of one episode as it is played.
+	 */
+	static final class Episode {
+
+		private final int numFeatures;
+		private ByteBuffer buffer;
+
+		Episode(int numFeatures) {
+			this.numFeatures = numFeatures;
+			this.buffer = ByteBuffer.allocate(256 * recordBytes(numFeatures)).order(ByteOrder.LITTLE_ENDIAN);
+		}
+
+		/**
+		 * Records a turn on which the footman's weights were updated towards totalReward.
+		 */
+		void recordEvent(int footman, int target, double reward, double totalReward, double[] features) {
+			record(footman, target, EVENT, reward, totalReward, features);
+		}
+
+		/**
+		 * Records a turn without an update.
+		 */
+		void recordTurn(int footman, int target, double reward, double[] features) {
+			record(footman, target, 0, reward, 0.0, features);
+		}
+
+		void clear() {
+			buffer.clear();
+		}
+
+		private void record(int footman, int target, int flags, double reward, double totalReward,
+				double[] features) {
+			if (buffer.remaining() < recordBytes(numFeatures)) {
+				ByteBuffer larger = ByteBuffer.allocate(2 * buffer.capacity()).order(ByteOrder.LITTLE_ENDIAN);
+				buffer.flip();
+				larger.put(buffer);
+				buffer = larger;
+			}
+			buffer.putInt(footman).putInt(target).putInt(flags).putDouble(reward).putDouble(totalReward);
+			for (int i = 0; i < numFeatures; i++) {
+				buffer.putDouble(features == null ? 0.0 : features[i]);
+			}
+		}
+	}
+
+	/**
+	 * Appends an episode, ended by an EPISODE_END record, and clears it.
+	 */
+	synchronized void append(Episode episode) {
+		episode.record(-1, -1, EPISODE_END, 0.0, 0.0, null);
+		try {
+			if (channel == null) {
+				open(episode.numFeatures);
+			}
+			episode.buffer.flip();
+			while (episode.buffer.hasRemaining()) {
+				channel.write(episode.buffer);
+			}
+		} catch (IOException ex) {
+			System.err.println("Failed to write trajectory log. Reason: " + ex.getMessage());
+		}
+		episode.clear();
+	}
+
+	synchronized void close() {
+		if (channel != null) {
+			try {
+				channel.close();
+			} catch (IOException ex) {
+				System.err.println("Failed to close trajectory log. Reason: " + ex.getMessage());
+			}
+			channel = null;
+		}
+	}
+
+	// Opens the log for appending, writing the header if it is new. A log left with a torn record by a
+	// crash is cut back to its last whole record.
+	private void open(int numFeatures) throws IOException {
+		file.getAbsoluteFile().getParentFile().mkdirs();
+		FileChannel opened = new RandomAccessFile(file, "rw").getChannel();
+		int recordBytes = recordBytes(numFeatures);
+		long size = opened.size();
+		ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+		if (size == 0) {
+			header.putInt(MAGIC).putInt(FORMAT).putInt(numFeatures).putInt(recordBytes);
+			header.flip();
+			while (header.hasRemaining()) {
+				opened.write(header);
+			}
+			size = HEADER_BYTES;
+		} else {
+			while (header.hasRemaining() && opened.read(header, header.position()) > 0) {
+				// the header is read from the start of the file
+			}
+			header.flip();
+			if (header.remaining() < HEADER_BYTES || header.getInt() != MAGIC || header.getInt() != FORMAT
+					|| header.getInt() != numFeatures || header.getInt() != recordBytes) {
+				opened.close();
+				throw new IOException(file + " is not a trajectory log of " + numFeatures + " features");
+			}
+			size -= (size - HEADER_BYTES) % recordBytes;
+			opened.truncate(size);
+		}
+		opened.position(size);
+		channel = opened;
+	}
+}
@@ -0,0 +1,257 @@
+package edu.cwru.sepia.agent;
+
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import edu.cwru.sepia.action.ActionFeedback;
+import edu.cwru.sepia.action.ActionResult;
+import edu.cwru.sepia.environment.model.history.DamageLog;
+import edu.cwru.sepia.environment.model.history.DeathLog;
+import edu.cwru.sepia.environment.model.history.History.HistoryView;
+
+/**
+ * Everything the agent needs from the history logs of the previous turn, read once per turn.
+ *
+ * The commands issued are counted and the damage, death and command feedback logs are each scanned
+ * a single time, summarised into totals and unit id indexed flags for the units that died or had
+ * feedback. Rewards and event checks then read from the digest instead of walking the logs again, and
+ * the footmen that fought or finished an action are listed so only they need to be visited.
+ */
+final class TurnDigest implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	// the turn the digest was built for, -1 if it is stale
+	private int turn = -1;
+	// gamma^(turn - 1), the discount applied to rewards received this turn
+	private double discount;
+
+	private int commandsIssued;
+	private int numDamages;
+	private double damageDealt;
+	private double damageTaken;
+	private int agentDeaths;
+	private int enemyDeaths;
+
+	// per unit flags, indexed by unit id
+	private boolean[] died = new boolean[0];
+	private boolean[] hadFeedback = new boolean[0];
+	// ids written into the per unit arrays, so they can be cleared without a full sweep
+	private int[] touched = new int[16];
+	private int numTouched;
+
+	// deaths in log order
+	private int[] deadIds = new int[8];
+	private int[] deadControllers = new int[8];
+	private int numDead;
+
+	// our footmen that dealt or took damage, possibly repeated
+	private int[] fighterIds = new int[8];
+	private int numFighters;
+	// our living footmen whose action completed or failed
+	private int[] finishedIds = new int[8];
+	private int numFinished;
+	// our living footmen with any command feedback
+	private int numFeedback;
+
+	boolean isCurrent(int turnNumber) {
+		return turn == turnNumber;
+	}
+
+	/**
+	 * Marks the digest stale. Called when a new episode starts since turn numbers restart.
+	 */
+	void invalidate() {
+		turn = -1;
+	}
+
+	/**
+	 * Reads the logs of the turn before turnNumber.
+	 */
+	void digest(HistoryView historyView, int playernum, int turnNumber, double gamma) {
+		clear();
+		turn = turnNumber;
+		discount = Math.pow(gamma, turnNumber - 1);
+		if (turnNumber <= 0) {
+			return;
+		}
+		int lastTurn = turnNumber - 1;
+
+		commandsIssued = historyView.getCommandsIssued(playernum, lastTurn).size();
+
+		// the logs are array backed, so indexing them saves an iterator per list
+		List<DamageLog> damages = historyView.getDamageLogs(lastTurn);
+		numDamages = damages.size();
+		for (int i = 0; i < numDamages; i++) {
+			DamageLog damage = damages.get(i);
+			int attackerId = damage.getAttackerID();
+			int defenderId = damage.getDefenderID();
+			if (damage.getAttackerController() == playernum) {
+				fighterIds = push(fighterIds, numFighters++, attackerId);
+			}
+			if (damage.getDefenderController() == playernum) {
+				fighterIds = push(fighterIds, numFighters++, defenderId);
+			}
+			if (damage.getAttackerController() == playernum) {
+				damageDealt += damage.getDamage();
+			} else {
+				damageTaken += damage.getDamage();
+			}
+		}
+
+		List<DeathLog> deaths = historyView.getDeathLogs(lastTurn);
+		for (int i = 0; i < deaths.size(); i++) {
+			DeathLog death = deaths.get(i);
+			int unitId = death.getDeadUnitID();
+			touch(unitId);
+			died[unitId] = true;
+			if (numDead == deadIds.length) {
+				deadIds = Arrays.copyOf(deadIds, numDead * 2);
+				deadControllers = Arrays.copyOf(deadControllers, numDead * 2);
+			}
+			deadIds[numDead] = unitId;
+			deadControllers[numDead] = death.getController();
+			numDead++;
+			if (death.getController() == playernum) {
+				agentDeaths++;
+			} else {
+				enemyDeaths++;
+			}
+		}
+
+		// the map is unmodifiable, which wraps every entry its entry set hands out, so go by key
+		Map<Integer, ActionResult> feedback = historyView.getCommandFeedback(playernum, lastTurn);
+		for (Integer unitId : feedback.keySet()) {
+			if (died(unitId)) {
+				continue;
+			}
+			touch(unitId);
+			hadFeedback[unitId] = true;
+			numFeedback++;
+			ActionFeedback status = feedback.get(unitId).getFeedback();
+			if (status == ActionFeedback.COMPLETED || status == ActionFeedback.FAILED) {
+				finishedIds = push(finishedIds, numFinished++, unitId);
+			}
+		}
+	}
+
+	double discount() {
+		return discount;
+	}
+
+	/**
+	 * @return true if any damage was dealt or any unit died on the last turn
+	 */
+	boolean eventHappened() {
+		return numDead > 0 || numDamages > 0;
+	}
+
+	int commandsIssued() {
+		return commandsIssued;
+	}
+
+	double damageDealt() {
+		return damageDealt;
+	}
+
+	double damageTaken() {
+		return damageTaken;
+	}
+
+	int agentDeaths() {
+		return agentDeaths;
+	}
+
+	int enemyDeaths() {
+		return enemyDeaths;
+	}
+
+	boolean died(int unitId) {
+		return unitId < died.length && died[unitId];
+	}
+
+	int numDead() {
+		return numDead;
+	}
+
+	int deadId(int i) {
+		return deadIds[i];
+	}
+
+	int deadController(int i) {
+		return deadControllers[i];
+	}
+
+	int numFighters() {
+		return numFighters;
+	}
+
+	int fighterId(int i) {
+		return fighterIds[i];
+	}
+
+	int numFinished() {
+		return numFinished;
+	}
+
+	int finishedId(int i) {
+		return finishedIds[i];
+	}
+
+	/**
+	 * @return true if unitId is one of our living footmen and has command feedback from the last turn
+	 */
+	boolean hadFeedback(int unitId) {
+		return unitId < hadFeedback.length && hadFeedback[unitId];
+	}
+
+	/**
+	 * @return the number of our living footmen with command feedback from the last turn
+	 */
+	int numFeedback() {
+		return numFeedback;
+	}
+
+	private void clear() {
+		for (int i = 0; i < numTouched; i++) {
+			int unitId = touched[i];
+			died[unitId] = false;
+			hadFeedback[unitId] = false;
+		}
+		numTouched = 0;
+		numDead = 0;
+		numFighters = 0;
+		numFinished = 0;
+		numFeedback = 0;
+		commandsIssued = 0;
+		numDamages = 0;
+		damageDealt = 0;
+		damageTaken = 0;
+		agentDeaths = 0;
+		enemyDeaths = 0;
+	}
+
+	// Stores id at index count, growing ids if it is full
+	private static int[] push(int[] ids, int count, int id) {
+		if (count == ids.length) {
+			ids = Arrays.copyOf(ids, count * 2);
+		}
+		ids[count] = id;
+		return ids;
+	}
+
+	// Makes sure the per unit arrays can hold unitId and remembers it for the next clear
+	private void touch(int unitId) {
+		if (unitId >= died.length) {
+			int size = Math.max(unitId + 1, died.length * 2);
+			died = Arrays.copyOf(died, size);
+			hadFeedback = Arrays.copyOf(hadFeedback, size);
+		}
+		if (numTouched == touched.length) {
+			touched = Arrays.copyOf(touched, numTouched * 2);
+		}
+		touched[numTouched++] = unitId;
+	}
+}
@@ -0,0 +1,66 @@
+package edu.cwru.sepia.agent;
+
+import java.io.Serializable;
+import java.util.Arrays;
+
+/**
+ * Growable list of unit ids in a primitive int array, for the living footmen of each side.
+ *
+ * Iterating by index and looking ids up never box or allocate. Removing an id keeps the order of the
+ * others, so the list stays in the order the units were added in.
+ */
+final class UnitList implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	private int[] ids = new int[16];
+	private int size;
+
+	void clear() {
+		size = 0;
+	}
+
+	void add(int unitId) {
+		if (size == ids.length) {
+			ids = Arrays.copyOf(ids, size * 2);
+		}
+		ids[size++] = unitId;
+	}
+
+	int size() {
+		return size;
+	}
+
+	boolean isEmpty() {
+		return size == 0;
+	}
+
+	int get(int i) {
+		return ids[i];
+	}
+
+	/**
+	 * @return the index of unitId, or -1 if it is not in the list
+	 */
+	int indexOf(int unitId) {
+		for (int i = 0; i < size; i++) {
+			if (ids[i] == unitId) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * @return true if unitId was in the list
+	 */
+	boolean remove(int unitId) {
+		int index = indexOf(unitId);
+		if (index < 0) {
+			return false;
+		}
+		System.arraycopy(ids, index + 1, ids, index, size - index - 1);
+		size--;
+		return true;
+	}
+}
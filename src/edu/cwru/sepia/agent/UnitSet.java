@@ -0,0 +1,60 @@
+package edu.cwru.sepia.agent;
+
+import java.io.Serializable;
+import java.util.Arrays;
+
+/**
+ * Set of unit ids that is emptied in O(1), used for the footmen affected by a turn's events.
+ *
+ * Ids are kept in the order they were added, and membership is a per id stamp of the generation it
+ * was added in, so clearing only starts a new generation. Nothing is allocated once the arrays have
+ * grown to the largest unit id.
+ */
+final class UnitSet implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	// unit id -> generation it was added in
+	private int[] stamps = new int[0];
+	private int generation = 1;
+	private int[] ids = new int[16];
+	private int size;
+
+	void clear() {
+		size = 0;
+		if (++generation == Integer.MAX_VALUE) {
+			Arrays.fill(stamps, 0);
+			generation = 1;
+		}
+	}
+
+	/**
+	 * @return true if unitId was not already in the set
+	 */
+	boolean add(int unitId) {
+		if (unitId >= stamps.length) {
+			stamps = Arrays.copyOf(stamps, Math.max(unitId + 1, stamps.length * 2));
+		}
+		if (stamps[unitId] == generation) {
+			return false;
+		}
+		stamps[unitId] = generation;
+		if (size == ids.length) {
+			ids = Arrays.copyOf(ids, size * 2);
+		}
+		ids[size++] = unitId;
+		return true;
+	}
+
+	boolean contains(int unitId) {
+		return 0 <= unitId && unitId < stamps.length && stamps[unitId] == generation;
+	}
+
+	int size() {
+		return size;
+	}
+
+	int get(int i) {
+		return ids[i];
+	}
+}
@@ -0,0 +1,201 @@
+package edu.cwru.sepia.agent;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.zip.CRC32;
+
+/**
+ * Writes binary, versioned weight checkpoints on a background thread.
+ *
+ * The game thread only copies the weights; a single writer thread maps a temporary file, writes the
+ * checkpoint into it and atomically renames it over agent_weights/weights.bin, so a crash never
+ * leaves a torn checkpoint. If checkpoints are requested faster than they can be written only the
+ * latest one is kept. Before every binary checkpoint the text weights file is exported as well, so
+ * loadWeights keeps working. The text file is written first so the checkpoint is the newer of the
+ * two and the agent loads it rather than the rounded text weights.
+ *
+ * Parallel workers share the primary agent's checkpointer, so versions only come from one writer.
+ *
+ * File layout: magic, format, version (long), count, count doubles, CRC32 of the doubles (long).
+ */
+final class WeightCheckpointer {
+
+	static final File CHECKPOINT_FILE = new File("agent_weights/weights.bin");
+
+	private static final int MAGIC = 0x524C5754;
+	private static final int FORMAT = 1;
+	private static final int HEADER_BYTES = 4 + 4 + 8 + 4;
+
+	private final RLAgent agent;
+	private final File file;
+	private final ExecutorService writer;
+	// the newest checkpoint that has not been written yet
+	private final AtomicReference<double[]> pending = new AtomicReference<double[]>();
+	private long version = 0;
+
+	WeightCheckpointer(RLAgent agent, File file) {
+		this.agent = agent;
+		this.file = file;
+		this.writer = Executors.newSingleThreadExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "weight-checkpointer");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		file.getAbsoluteFile().getParentFile().mkdirs();
+		// carry on numbering from the checkpoint already on disk
+		version = versionOf(file);
+	}
+
+	/**
+	 * Queues a copy of the weights to be written. Returns immediately.
+	 */
+	void checkpoint(double[] weights) {
+		if (pending.getAndSet(weights.clone()) == null) {
+			writer.execute(new Runnable() {
+				@Override
+				public void run() {
+					writePending();
+				}
+			});
+		}
+	}
+
+	/**
+	 * Writes any queued checkpoint and stops the writer thread.
+	 */
+	void close() {
+		writer.shutdown();
+		try {
+			writer.awaitTermination(1, TimeUnit.MINUTES);
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private void writePending() {
+		double[] weights = pending.getAndSet(null);
+		if (weights == null) {
+			return;
+		}
+		version++;
+		agent.saveWeights(RLAgent.box(weights));
+		try {
+			write(file, weights, version);
+		} catch (IOException ex) {
+			System.err.println("Failed to write weight checkpoint. Reason: " + ex.getMessage());
+		}
+	}
+
+	/**
+	 * Writes a checkpoint to a temporary file next to file and renames it into place.
+	 */
+	static void write(File file, double[] weights, long version) throws IOException {
+		File temp = new File(file.getAbsoluteFile().getParentFile(), file.getName() + ".tmp");
+		RandomAccessFile out = new RandomAccessFile(temp, "rw");
+		try {
+			FileChannel channel = out.getChannel();
+			int size = HEADER_BYTES + 8 * weights.length + 8;
+			out.setLength(size);
+			MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+			buffer.putInt(MAGIC).putInt(FORMAT).putLong(version).putInt(weights.length);
+			CRC32 crc = new CRC32();
+			for (double weight : weights) {
+				long bits = Double.doubleToLongBits(weight);
+				buffer.putLong(bits);
+				updateCrc(crc, bits);
+			}
+			buffer.putLong(crc.getValue());
+			buffer.force();
+		} finally {
+			out.close();
+		}
+		Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+				StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/**
+	 * Reads a checkpoint.
+	 *
+	 * @return the weights, or null if the file is missing or not a valid checkpoint
+	 */
+	static double[] read(File file) {
+		if (!file.exists()) {
+			return null;
+		}
+		try {
+			RandomAccessFile in = new RandomAccessFile(file, "r");
+			try {
+				FileChannel channel = in.getChannel();
+				MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+				if (channel.size() < HEADER_BYTES || buffer.getInt() != MAGIC || buffer.getInt() != FORMAT) {
+					System.err.println("Failed to load weight checkpoint. " + file + " is not a checkpoint");
+					return null;
+				}
+				buffer.getLong();
+				int count = buffer.getInt();
+				if (count < 0 || channel.size() != HEADER_BYTES + 8L * count + 8) {
+					System.err.println("Failed to load weight checkpoint. " + file + " has the wrong size");
+					return null;
+				}
+				double[] weights = new double[count];
+				CRC32 crc = new CRC32();
+				for (int i = 0; i < count; i++) {
+					long bits = buffer.getLong();
+					updateCrc(crc, bits);
+					weights[i] = Double.longBitsToDouble(bits);
+				}
+				if (buffer.getLong() != crc.getValue()) {
+					System.err.println("Failed to load weight checkpoint. " + file + " is corrupt");
+					return null;
+				}
+				return weights;
+			} finally {
+				in.close();
+			}
+		} catch (IOException ex) {
+			System.err.println("Failed to load weight checkpoint. Reason: " + ex.getMessage());
+		}
+		return null;
+	}
+
+	/**
+	 * @return the version of the checkpoint in file, or 0 if there is none
+	 */
+	static long versionOf(File file) {
+		if (!file.exists() || file.length() < HEADER_BYTES) {
+			return 0;
+		}
+		try {
+			RandomAccessFile in = new RandomAccessFile(file, "r");
+			try {
+				if (in.readInt() != MAGIC || in.readInt() != FORMAT) {
+					return 0;
+				}
+				return in.readLong();
+			} finally {
+				in.close();
+			}
+		} catch (IOException ex) {
+			return 0;
+		}
+	}
+
+	private static void updateCrc(CRC32 crc, long bits) {
+		for (int shift = 56; shift >= 0; shift -= 8) {
+			crc.update((int) (bits >>> shift));
+		}
+	}
+}
@@ -0,0 +1,98 @@
+package edu.cwru.sepia.agent;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+
+public class ConvergenceMonitorTest {
+
+	private static final int EPISODES_PER_ROUND = 10;
+
+	private final double[] weights = { 1, -2, 0.5, 3, -1 };
+
+	@Test
+	public void stopsOncePatienceRoundsHaveNotImproved() {
+		ConvergenceMonitor monitor = new ConvergenceMonitor(2, 1.0, 3, 20, 0);
+
+		assertEquals(4, roundsUntilConverged(monitor, -100, -100, -100, -100, -100));
+		assertEquals(40, monitor.episodes());
+		assertTrue(monitor.reason().contains("for 3 rounds"));
+		// and stays stopped whatever comes next
+		assertTrue(round(monitor, 500));
+	}
+
+	@Test
+	public void playsAtLeastMinEpisodes() {
+		ConvergenceMonitor monitor = new ConvergenceMonitor(2, 1.0, 3, 100, 0);
+		double[] rewards = new double[20];
+		Arrays.fill(rewards, -100);
+
+		assertEquals(10, roundsUntilConverged(monitor, rewards));
+		assertEquals(100, monitor.episodes());
+	}
+
+	@Test
+	public void startsCountingStaleRoundsAgainAfterAnImprovement() {
+		ConvergenceMonitor monitor = new ConvergenceMonitor(2, 1.0, 3, 0, 0);
+
+		// two stale rounds, two that raise the window mean, then three stale ones
+		assertEquals(8, roundsUntilConverged(monitor, -100, -100, -100, -90, -90, -90, -90, -90, -90));
+	}
+
+	@Test
+	public void ignoresGainsWithinThePlateauThreshold() {
+		ConvergenceMonitor monitor = new ConvergenceMonitor(1, 5.0, 2, 0, 0);
+
+		assertEquals(3, roundsUntilConverged(monitor, -100, -97, -96, -98));
+	}
+
+	@Test
+	public void keepsTrainingWhileTheWeightsStillMove() {
+		ConvergenceMonitor monitor = new ConvergenceMonitor(2, 1.0, 3, 0, 0.01);
+		for (int i = 0; i < 20; i++) {
+			for (int w = 0; w < weights.length; w++) {
+				weights[w] *= 1.1;
+			}
+			assertFalse("round " + i, round(monitor, -100));
+		}
+		assertNull(monitor.reason());
+
+		assertEquals(3, roundsUntilConverged(monitor, -100, -100, -100, -100));
+		assertTrue(monitor.reason().contains("weights last changed by 0.00e+00"));
+	}
+
+	@Test
+	public void countsTheEpisodesOfAResumedRun() {
+		ConvergenceMonitor monitor = new ConvergenceMonitor(2, 1.0, 3, 100, 0);
+		monitor.resumeAt(90);
+		assertEquals(90, monitor.episodes());
+
+		assertEquals(4, roundsUntilConverged(monitor, -100, -100, -100, -100, -100));
+		assertEquals(130, monitor.episodes());
+	}
+
+	// Plays a round of training episodes and records the test reward that followed them
+	private boolean round(ConvergenceMonitor monitor, double reward) {
+		for (int i = 0; i < EPISODES_PER_ROUND; i++) {
+			monitor.episodePlayed();
+		}
+		return monitor.roundRecorded(reward, weights);
+	}
+
+	// The number of the round, counting from 1, at which the monitor first stops, or 0 if it never does
+	private int roundsUntilConverged(ConvergenceMonitor monitor, double... rewards) {
+		for (int i = 0; i < rewards.length; i++) {
+			boolean converged = round(monitor, rewards[i]);
+			assertEquals(converged, monitor.converged());
+			if (converged) {
+				return i + 1;
+			}
+		}
+		return 0;
+	}
+}
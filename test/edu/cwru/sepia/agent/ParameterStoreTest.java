@@ -0,0 +1,141 @@
+package edu.cwru.sepia.agent;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class ParameterStoreTest {
+
+	@Rule
+	public final TemporaryFolder folder = new TemporaryFolder();
+
+	private File file;
+	private final List<ParameterStore> stores = new ArrayList<ParameterStore>();
+
+	@Before
+	public void setUp() {
+		file = new File(folder.getRoot(), "shared.bin");
+	}
+
+	@After
+	public void tearDown() {
+		for (ParameterStore store : stores) {
+			store.close();
+		}
+	}
+
+	@Test
+	public void startsEveryStoreFromTheCreatedWeights() throws IOException {
+		double[] first = { 1, 2, 3 };
+		double[] second = { 7, 8, 9 };
+		open(2, first);
+		open(2, second);
+
+		assertArrayEquals(new double[] { 1, 2, 3 }, first, 0);
+		assertArrayEquals(new double[] { 1, 2, 3 }, second, 0);
+	}
+
+	@Test
+	public void sumsTheUpdatesOfEveryStore() throws IOException {
+		double[] first = { 1, 2, 3 };
+		double[] second = first.clone();
+		ParameterStore firstStore = open(2, first);
+		ParameterStore secondStore = open(2, second);
+
+		first[0] += 0.5;
+		second[2] -= 2;
+		// a change made while the other store published is kept
+		firstStore.sync(first);
+		secondStore.sync(second);
+		firstStore.sync(first);
+
+		assertArrayEquals(new double[] { 1.5, 2, 1 }, first, 0);
+		assertArrayEquals(first, second, 0);
+	}
+
+	@Test
+	public void keepsWhatAClosedStorePublished() throws IOException {
+		double[] first = { 1, 2, 3 };
+		ParameterStore firstStore = open(1, first);
+		first[1] = 5;
+		firstStore.sync(first);
+		firstStore.close();
+
+		// takes over the only slot along with its updates
+		double[] second = new double[3];
+		ParameterStore secondStore = open(1, second);
+		assertArrayEquals(new double[] { 1, 5, 3 }, second, 0);
+		second[1] = 4;
+		secondStore.sync(second);
+		assertArrayEquals(new double[] { 1, 4, 3 }, second, 0);
+	}
+
+	@Test(expected = IOException.class)
+	public void rejectsAStoreWhenEverySlotIsInUse() throws IOException {
+		open(1, new double[3]);
+		open(1, new double[3]);
+	}
+
+	@Test(expected = IOException.class)
+	public void rejectsAStoreOfADifferentNumberOfWeights() throws IOException {
+		open(2, new double[3]);
+		open(2, new double[4]);
+	}
+
+	@Test
+	public void neverReadsAHalfWrittenSlot() throws Exception {
+		int numWeights = 4096;
+		final double[] written = new double[numWeights];
+		final ParameterStore writer = open(2, written);
+		double[] read = new double[numWeights];
+		ParameterStore reader = open(2, read);
+
+		// every sync publishes weights that all hold the same value, so a torn read would mix two
+		final AtomicBoolean done = new AtomicBoolean();
+		Thread writing = new Thread() {
+			@Override
+			public void run() {
+				for (int version = 1; version <= 5000; version++) {
+					for (int i = 0; i < written.length; i++) {
+						written[i] = version;
+					}
+					writer.sync(written);
+				}
+				done.set(true);
+			}
+		};
+		writing.start();
+		double last = 0;
+		int reads = 0;
+		while (!done.get() || reads == 0) {
+			reader.sync(read);
+			for (int i = 1; i < numWeights; i++) {
+				assertEquals("weight " + i + " after " + reads + " reads", read[0], read[i], 0);
+			}
+			assertTrue(read[0] >= last);
+			last = read[0];
+			reads++;
+		}
+		writing.join();
+		reader.sync(read);
+		assertEquals(5000, read[numWeights - 1], 0);
+	}
+
+	private ParameterStore open(int slots, double[] weights) throws IOException {
+		ParameterStore store = new ParameterStore(file, slots, weights);
+		stores.add(store);
+		return store;
+	}
+}
@@ -0,0 +1,113 @@
+package edu.cwru.sepia.agent;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Random;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class QMatrixScorerTest {
+
+	private static final int FEATURES = RLAgent.NUM_FEATURES;
+
+	private final Random random = new Random(4);
+	private final FeatureMatrix matrix = new FeatureMatrix(FEATURES);
+	private final QMatrixScorer scorer = new QMatrixScorer(FEATURES);
+	private double[] weights;
+
+	@Before
+	public void setUp() {
+		UnitList footmen = new UnitList();
+		UnitList enemies = new UnitList();
+		for (int id = 0; id < 6; id++) {
+			footmen.add(id);
+		}
+		for (int id = 20; id < 27; id++) {
+			enemies.add(id);
+		}
+		matrix.reset(1, footmen, enemies);
+		double[] data = matrix.data();
+		for (int i = 0; i < matrix.stride() * FEATURES; i++) {
+			data[i] = random.nextDouble() * 10 - 5;
+		}
+		weights = new double[FEATURES];
+		for (int i = 0; i < FEATURES; i++) {
+			weights[i] = random.nextDouble() * 2 - 1;
+		}
+	}
+
+	@Test
+	public void picksTheColumnCalcQValueWouldPick() {
+		for (int row = 0; row < matrix.rows(); row++) {
+			assertEquals("row " + row, bestByDot(row), scorer.best(matrix, weights, 0, row));
+		}
+		// one pass over the whole matrix, not one per row
+		assertEquals(matrix.stride(), scorer.takeEvaluations());
+	}
+
+	@Test
+	public void rescoresAColumnWhoseFeaturesChanged() {
+		int col = (scorer.best(matrix, weights, 0, 0) + 1) % matrix.cols();
+		for (int row = 0; row < matrix.rows(); row++) {
+			setCell(row, col, 100);
+		}
+		scorer.rescoreColumn(matrix, 0, col);
+
+		for (int row = 0; row < matrix.rows(); row++) {
+			assertEquals("row " + row, bestByDot(row), scorer.best(matrix, weights, 0, row));
+		}
+	}
+
+	@Test
+	public void rescoresOnlyWhenTheWeightsVersionChanges() {
+		int before = scorer.best(matrix, weights, 0, 0);
+		// favour another column by flipping the weights in place
+		for (int i = 0; i < FEATURES; i++) {
+			weights[i] = -weights[i];
+		}
+		assertEquals(before, scorer.best(matrix, weights, 0, 0));
+		assertEquals(bestByDot(0), scorer.best(matrix, weights, 1, 0));
+	}
+
+	@Test
+	public void rescoresWhenTheMatrixIsLaidOutAgain() {
+		scorer.best(matrix, weights, 0, 0);
+		UnitList footmen = new UnitList();
+		UnitList enemies = new UnitList();
+		footmen.add(3);
+		enemies.add(21);
+		enemies.add(22);
+		matrix.reset(2, footmen, enemies);
+		setCell(0, 0, -1);
+		setCell(0, 1, 1);
+		weights = new double[] { 1, 1, 1, 1, 1 };
+
+		assertEquals(1, scorer.best(matrix, weights, 0, 0));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void rejectsTileCodedWeights() {
+		scorer.best(matrix, new double[FEATURES + 4096], 0, 0);
+	}
+
+	// The first column with the highest Q-value computed the way calcQValue does
+	private int bestByDot(int row) {
+		int best = -1;
+		double max = Double.NEGATIVE_INFINITY;
+		for (int col = 0; col < matrix.cols(); col++) {
+			double value = RLAgent.dot(weights, matrix.data(), matrix.cell(row, col), matrix.stride());
+			if (value > max) {
+				max = value;
+				best = col;
+			}
+		}
+		return best;
+	}
+
+	private void setCell(int row, int col, double value) {
+		for (int f = 0; f < FEATURES; f++) {
+			matrix.data()[f * matrix.stride() + matrix.cell(row, col)] = value;
+		}
+	}
+}
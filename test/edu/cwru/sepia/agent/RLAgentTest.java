@@ -0,0 +1,86 @@
+package edu.cwru.sepia.agent;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class RLAgentTest {
+
+	private RLAgent saved;
+	private byte[] snapshot;
+
+	@Before
+	public void setUp() {
+		saved = new RLAgent(0, new String[] { "100", "false", "seed=3" });
+		saved.randomizeWeights(new Random(10));
+		saved.addEpisodesPlayed(30);
+		saved.recordTestRound(-12.5);
+		saved.recordTestRound(-8.25);
+		saved.recordTestRound(Double.NaN);
+		// move the exploration random numbers away from where the seed starts them
+		for (int i = 0; i < 17; i++) {
+			saved.random().nextDouble();
+		}
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		saved.savePlayerData(bytes);
+		snapshot = bytes.toByteArray();
+	}
+
+	@Test
+	public void resumesFromASnapshotWhereTheSavedAgentLeftOff() {
+		RLAgent resumed = new RLAgent(0, new String[] { "100", "false", "seed=99" });
+		resumed.loadPlayerData(new ByteArrayInputStream(snapshot));
+
+		assertArrayEquals(saved.weights, resumed.weights, 0);
+		assertEquals(30, resumed.episodesPlayed());
+		assertEquals(saved.testRewards(), resumed.testRewards());
+		for (int i = 0; i < 100; i++) {
+			assertEquals(saved.random().nextLong(), resumed.random().nextLong());
+		}
+	}
+
+	@Test
+	public void ignoresACorruptSnapshot() {
+		for (int offset : new int[] { 0, 12, snapshot.length / 2, snapshot.length - 1 }) {
+			byte[] corrupt = snapshot.clone();
+			corrupt[offset] ^= 0x10;
+			assertUnchanged(corrupt);
+		}
+		assertUnchanged(Arrays.copyOf(snapshot, snapshot.length - 9));
+	}
+
+	@Test
+	public void ignoresASnapshotWithTheWrongNumberOfWeights() {
+		RLAgent tileCoded = new RLAgent(0, new String[] { "100", "false", "tiles=64" });
+		double[] weights = tileCoded.weights.clone();
+		Random random = tileCoded.random();
+		tileCoded.loadPlayerData(new ByteArrayInputStream(snapshot));
+
+		assertArrayEquals(weights, tileCoded.weights, 0);
+		assertEquals(0, tileCoded.episodesPlayed());
+		assertTrue(tileCoded.testRewards().isEmpty());
+		assertSame(random, tileCoded.random());
+	}
+
+	// Loads the snapshot into a new agent and checks that the agent kept its own state
+	private void assertUnchanged(byte[] snapshot) {
+		RLAgent agent = new RLAgent(0, new String[] { "100", "false", "seed=99" });
+		double[] weights = agent.weights.clone();
+		Random random = agent.random();
+		agent.loadPlayerData(new ByteArrayInputStream(snapshot));
+
+		assertArrayEquals(weights, agent.weights, 0);
+		assertEquals(0, agent.episodesPlayed());
+		assertTrue(agent.testRewards().isEmpty());
+		assertSame(random, agent.random());
+	}
+}
@@ -0,0 +1,114 @@
+package edu.cwru.sepia.agent;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class ReplayBufferTest {
+
+	@Test
+	public void samplesInProportionToPriority() {
+		// not a power of two, so the leaves of the sum tree sit on two levels
+		ReplayBuffer buffer = new ReplayBuffer(5, 2);
+		double[] errors = { 0, 1, 3, 7, 15 };
+		double[] priorities = new double[errors.length];
+		double total = 0;
+		for (int i = 0; i < errors.length; i++) {
+			buffer.add(new double[] { i, -i }, i);
+			buffer.updatePriority(i, errors[i]);
+			priorities[i] = Math.pow(errors[i] + 1e-3, 0.6);
+			total += priorities[i];
+		}
+
+		int samples = 200000;
+		int[] counts = new int[errors.length];
+		Random random = new Random(1);
+		for (int i = 0; i < samples; i++) {
+			counts[buffer.sample(random)]++;
+		}
+		for (int i = 0; i < errors.length; i++) {
+			assertEquals("entry " + i, priorities[i] / total, counts[i] / (double) samples, 0.005);
+		}
+	}
+
+	@Test
+	public void newEntriesGetTheLargestPrioritySeen() {
+		ReplayBuffer buffer = new ReplayBuffer(4, 1);
+		buffer.add(new double[] { 0 }, 0);
+		buffer.updatePriority(0, 1000);
+		buffer.add(new double[] { 1 }, 1);
+
+		int samples = 100000;
+		int newest = 0;
+		Random random = new Random(2);
+		for (int i = 0; i < samples; i++) {
+			newest += buffer.sample(random);
+		}
+		assertEquals(0.5, newest / (double) samples, 0.01);
+	}
+
+	@Test
+	public void overwritesTheOldestEntryOnceFull() {
+		ReplayBuffer buffer = new ReplayBuffer(3, 2);
+		for (int i = 0; i < 4; i++) {
+			buffer.add(new double[] { i, 10 * i }, 100 * i);
+		}
+
+		assertEquals(3, buffer.size());
+		double[] features = new double[2];
+		buffer.features(0, features);
+		assertArrayEquals(new double[] { 3, 30 }, features, 0);
+		assertEquals(300, buffer.reward(0), 0);
+		buffer.features(1, features);
+		assertArrayEquals(new double[] { 1, 10 }, features, 0);
+	}
+
+	@Test
+	public void readsBackWhatItWrote() throws IOException {
+		ReplayBuffer buffer = new ReplayBuffer(4, 3);
+		for (int i = 0; i < 6; i++) {
+			buffer.add(new double[] { i, i + 0.5, -i }, i * 1.25);
+			buffer.updatePriority(i % 4, i);
+		}
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		buffer.write(new DataOutputStream(bytes));
+		ReplayBuffer copy = ReplayBuffer.read(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+
+		assertEquals(buffer.capacity(), copy.capacity());
+		assertEquals(buffer.size(), copy.size());
+		double[] expected = new double[3];
+		double[] actual = new double[3];
+		for (int i = 0; i < buffer.size(); i++) {
+			buffer.features(i, expected);
+			copy.features(i, actual);
+			assertArrayEquals(expected, actual, 0);
+			assertEquals(buffer.reward(i), copy.reward(i), 0);
+		}
+		// same priorities, so the same samples from the same seed
+		Random random = new Random(3);
+		Random copyRandom = new Random(3);
+		for (int i = 0; i < 1000; i++) {
+			assertEquals(buffer.sample(random), copy.sample(copyRandom));
+		}
+	}
+
+	@Test(expected = IOException.class)
+	public void rejectsAnInvalidHeader() throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeInt(4);
+		out.writeInt(3);
+		out.writeInt(0);
+		// more entries than the capacity
+		out.writeInt(5);
+		ReplayBuffer.read(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+	}
+}
@@ -0,0 +1,148 @@
+package edu.cwru.sepia.agent;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class SpatialGridTest {
+
+	private static final int WIDTH = 60;
+	private static final int HEIGHT = 45;
+	private static final int UNITS = 200;
+
+	private final SpatialGrid grid = new SpatialGrid(8);
+	private final int[] xs = new int[UNITS];
+	private final int[] ys = new int[UNITS];
+	private final boolean[] present = new boolean[UNITS];
+	private final Random random = new Random(5);
+
+	@Before
+	public void setUp() {
+		grid.reset(WIDTH, HEIGHT);
+		for (int id = 0; id < UNITS; id++) {
+			move(id);
+		}
+	}
+
+	@Test
+	public void findsTheSameNearestUnitsAsAFullScan() {
+		int[] out = new int[10];
+		for (int query = 0; query < 500; query++) {
+			int x = random.nextInt(WIDTH);
+			int y = random.nextInt(HEIGHT);
+			int k = 1 + random.nextInt(out.length);
+			int found = grid.nearest(x, y, k, out);
+			assertArrayEquals("k = " + k + " at (" + x + ", " + y + ")", nearestByScan(x, y, k),
+					Arrays.copyOf(out, found));
+		}
+	}
+
+	@Test
+	public void findsTheSameUnitsInRangeAsAFullScan() {
+		int[] out = new int[UNITS];
+		for (int query = 0; query < 500; query++) {
+			int x = random.nextInt(WIDTH);
+			int y = random.nextInt(HEIGHT);
+			int radius = random.nextInt(12);
+			int found = grid.within(x, y, radius, out);
+			int[] sorted = Arrays.copyOf(out, found);
+			Arrays.sort(sorted);
+			assertArrayEquals("radius " + radius + " at (" + x + ", " + y + ")", withinByScan(x, y, radius),
+					sorted);
+		}
+	}
+
+	@Test
+	public void followsUnitsThatMoveAndDie() {
+		for (int round = 0; round < 20; round++) {
+			for (int id = 0; id < UNITS; id++) {
+				if (random.nextInt(10) == 0) {
+					grid.remove(id);
+					present[id] = false;
+				} else if (random.nextBoolean()) {
+					move(id);
+				}
+			}
+		}
+		int alive = 0;
+		for (int id = 0; id < UNITS; id++) {
+			assertEquals(present[id], grid.contains(id));
+			alive += present[id] ? 1 : 0;
+		}
+		assertEquals(alive, grid.size());
+		findsTheSameNearestUnitsAsAFullScan();
+		findsTheSameUnitsInRangeAsAFullScan();
+	}
+
+	@Test
+	public void reportsFewerUnitsThanAskedForWhenTheIndexHoldsFewer() {
+		grid.reset(WIDTH, HEIGHT);
+		grid.put(7, 3, 4);
+		grid.put(9, 50, 40);
+		int[] out = new int[5];
+
+		assertEquals(2, grid.nearest(0, 0, 5, out));
+		assertArrayEquals(new int[] { 7, 9 }, Arrays.copyOf(out, 2));
+		grid.remove(7);
+		assertFalse(grid.contains(7));
+		assertTrue(grid.contains(9));
+		assertEquals(1, grid.nearest(0, 0, 5, out));
+		assertEquals(9, out[0]);
+	}
+
+	private void move(int id) {
+		xs[id] = random.nextInt(WIDTH);
+		ys[id] = random.nextInt(HEIGHT);
+		present[id] = true;
+		grid.put(id, xs[id], ys[id]);
+	}
+
+	private int distance(int id, int x, int y) {
+		return Math.max(Math.abs(xs[id] - x), Math.abs(ys[id] - y));
+	}
+
+	// The k closest units by Chebyshev distance, ties broken by the lower id
+	private int[] nearestByScan(final int x, final int y, int k) {
+		List<Integer> ids = new ArrayList<Integer>();
+		for (int id = 0; id < UNITS; id++) {
+			if (present[id]) {
+				ids.add(id);
+			}
+		}
+		Collections.sort(ids, new Comparator<Integer>() {
+			@Override
+			public int compare(Integer a, Integer b) {
+				int byDistance = Integer.compare(distance(a, x, y), distance(b, x, y));
+				return byDistance != 0 ? byDistance : Integer.compare(a, b);
+			}
+		});
+		int[] result = new int[Math.min(k, ids.size())];
+		for (int i = 0; i < result.length; i++) {
+			result[i] = ids.get(i);
+		}
+		return result;
+	}
+
+	// Every unit within radius, by id
+	private int[] withinByScan(int x, int y, int radius) {
+		int[] result = new int[UNITS];
+		int count = 0;
+		for (int id = 0; id < UNITS; id++) {
+			if (present[id] && distance(id, x, y) <= radius) {
+				result[count++] = id;
+			}
+		}
+		return Arrays.copyOf(result, count);
+	}
+}
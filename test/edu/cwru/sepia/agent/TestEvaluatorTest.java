@@ -0,0 +1,97 @@
+package edu.cwru.sepia.agent;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import edu.cwru.sepia.environment.model.state.StateCreator;
+
+public class TestEvaluatorTest {
+
+	private static final int ROUNDS = 4;
+	private static final int MAX_TURNS = 500;
+
+	private final double[][] snapshots = new double[ROUNDS][];
+	private StateCreator stateCreator;
+
+	@Before
+	public void setUp() throws Exception {
+		stateCreator = ScenarioGenerator.stateCreator("data/rl_5fv5f.xml");
+		Random random = new Random(6);
+		for (int v = 0; v < ROUNDS; v++) {
+			snapshots[v] = new double[RLAgent.NUM_FEATURES];
+			for (int i = 0; i < snapshots[v].length; i++) {
+				snapshots[v][i] = random.nextDouble() * 2 - 1;
+			}
+		}
+	}
+
+	@Test
+	public void recordsRoundsThatFinishOutOfOrderInSnapshotOrder() {
+		List<Double> sequential = evaluate(1, -1);
+		List<Double> parallel = evaluate(ROUNDS, -1);
+
+		assertEquals(ROUNDS, sequential.size());
+		assertEquals(sequential, parallel);
+	}
+
+	@Test
+	public void keepsTheEntryOfAFailedRound() {
+		List<Double> sequential = evaluate(1, -1);
+		List<Double> parallel = evaluate(ROUNDS, 1);
+
+		assertEquals(ROUNDS, parallel.size());
+		for (int v = 0; v < ROUNDS; v++) {
+			assertEquals("round " + v, v == 1 ? Double.NaN : sequential.get(v), parallel.get(v), 0);
+		}
+	}
+
+	// The test results of one evaluator given every snapshot. With more than one thread, each round
+	// waits for the next one to finish first, so they finish last to first. The failing round throws
+	// instead of playing.
+	private List<Double> evaluate(int threads, final int failing) {
+		final RLAgent learner = new RLAgent(0, new String[] { "10", "false" });
+		final TestEvaluator.Arena simulated = TestEvaluator.simulatedArena(stateCreator, learner.getPlayerNumber(),
+				MAX_TURNS);
+		final CountDownLatch[] done = new CountDownLatch[ROUNDS + 1];
+		for (int v = 0; v < done.length; v++) {
+			done[v] = new CountDownLatch(v == ROUNDS || threads == 1 ? 0 : 1);
+		}
+		TestEvaluator evaluator = new TestEvaluator(learner, new TestEvaluator.Arena() {
+			@Override
+			public void play(RLAgent probe, int episodes, long seed) throws InterruptedException {
+				int version = versionOf(probe);
+				done[version + 1].await();
+				try {
+					if (version == failing) {
+						throw new IllegalStateException("round " + version + " fails");
+					}
+					simulated.play(probe, episodes, seed);
+				} finally {
+					done[version].countDown();
+				}
+			}
+		}, threads);
+		for (double[] snapshot : snapshots) {
+			evaluator.submit(snapshot);
+		}
+		evaluator.close();
+		return new ArrayList<Double>(learner.testRewards());
+	}
+
+	private int versionOf(RLAgent probe) {
+		for (int v = 0; v < ROUNDS; v++) {
+			if (Arrays.equals(snapshots[v], probe.weights)) {
+				return v;
+			}
+		}
+		throw new AssertionError("unknown snapshot " + Arrays.toString(probe.weights));
+	}
+}
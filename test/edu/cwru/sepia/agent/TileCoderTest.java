@@ -0,0 +1,127 @@
+package edu.cwru.sepia.agent;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class TileCoderTest {
+
+	private static final double[] WIDTHS = { 2.0, 0.5 };
+	private static final int TILINGS = 8;
+	private static final int FIRST_WEIGHT = RLAgent.NUM_FEATURES;
+
+	private final Random random = new Random(8);
+
+	@Test
+	public void activatesOneTilePerTilingForEachAttributeAndTheirJointTile() {
+		TileCoder coder = new TileCoder(WIDTHS, TILINGS, 64, FIRST_WEIGHT, 0.001);
+		assertEquals(TILINGS * 3, coder.activeTiles());
+		assertEquals(0.001 / coder.activeTiles(), coder.stepSize(), 0);
+
+		int from = 3;
+		int[] tiles = new int[from + coder.activeTiles() + 2];
+		Arrays.fill(tiles, -1);
+		coder.tiles(new double[] { 7.3, -1.2 }, tiles, from);
+		for (int i = 0; i < tiles.length; i++) {
+			if (i < from || i >= from + coder.activeTiles()) {
+				assertEquals("entry " + i + " is not the coder's", -1, tiles[i]);
+			} else {
+				assertTrue("tile " + tiles[i], tiles[i] >= FIRST_WEIGHT && tiles[i] < FIRST_WEIGHT + 64);
+			}
+		}
+	}
+
+	@Test
+	public void hashesTheSameAttributesToTheSameTiles() {
+		TileCoder coder = new TileCoder(WIDTHS, TILINGS, 4096, FIRST_WEIGHT, 0.001);
+		TileCoder other = new TileCoder(WIDTHS, TILINGS, 4096, FIRST_WEIGHT, 0.001);
+		for (int i = 0; i < 100; i++) {
+			double[] attributes = randomAttributes();
+			assertArrayEquals(tiles(coder, attributes), tiles(other, attributes));
+		}
+	}
+
+	@Test
+	public void sharesMostTilesBetweenNearbyAttributesAndFewBetweenDistantOnes() {
+		TileCoder coder = new TileCoder(WIDTHS, TILINGS, 1 << 20, FIRST_WEIGHT, 0.001);
+		for (int i = 0; i < 100; i++) {
+			double[] attributes = randomAttributes();
+			// a quarter of a tile along the first attribute moves about a quarter of its tilings
+			double[] near = { attributes[0] + WIDTHS[0] / 4, attributes[1] };
+			double[] far = { attributes[0] + WIDTHS[0] * 10, attributes[1] + WIDTHS[1] * 10 };
+
+			int[] tiles = tiles(coder, attributes);
+			assertTrue(shared(tiles, tiles(coder, near)) > coder.activeTiles() / 2);
+			assertTrue(shared(tiles, tiles(coder, far)) <= 1);
+		}
+	}
+
+	@Test
+	public void spreadsTilesOverEveryWeight() {
+		int dimension = 64;
+		TileCoder coder = new TileCoder(WIDTHS, TILINGS, dimension, FIRST_WEIGHT, 0.001);
+		int[] counts = new int[dimension];
+		int points = 1000;
+		for (int i = 0; i < points; i++) {
+			// spread out far enough that almost every tile is a different one
+			double[] attributes = { random.nextDouble() * 1e5, random.nextDouble() * 1e5 };
+			for (int tile : tiles(coder, attributes)) {
+				counts[tile - FIRST_WEIGHT]++;
+			}
+		}
+		double mean = points * coder.activeTiles() / (double) dimension;
+		for (int w = 0; w < dimension; w++) {
+			assertTrue("weight " + w + " holds " + counts[w] + " tiles",
+					counts[w] > mean / 2 && counts[w] < mean * 2);
+		}
+	}
+
+	@Test
+	public void valuesAttributesAsTheSumOfTheirTileWeights() {
+		// small enough that some tiles collide and are counted twice
+		TileCoder coder = new TileCoder(WIDTHS, TILINGS, 16, FIRST_WEIGHT, 0.001);
+		double[] weights = new double[FIRST_WEIGHT + coder.dimension()];
+		for (int i = 0; i < weights.length; i++) {
+			weights[i] = random.nextDouble();
+		}
+		int from = 2;
+		int[] tiles = new int[from + coder.activeTiles()];
+		for (int i = 0; i < 100; i++) {
+			coder.tiles(randomAttributes(), tiles, from);
+			double sum = 0;
+			for (int t = from; t < tiles.length; t++) {
+				sum += weights[tiles[t]];
+			}
+			assertEquals(sum, coder.value(weights, tiles, from), 1e-12);
+		}
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void rejectsNoTilings() {
+		new TileCoder(WIDTHS, 0, 64, FIRST_WEIGHT, 0.001);
+	}
+
+	private double[] randomAttributes() {
+		return new double[] { random.nextDouble() * 40 - 20, random.nextDouble() * 10 - 5 };
+	}
+
+	private static int[] tiles(TileCoder coder, double[] attributes) {
+		int[] tiles = new int[coder.activeTiles()];
+		coder.tiles(attributes, tiles, 0);
+		return tiles;
+	}
+
+	// The number of positions at which both attribute vectors activate the same tile
+	private static int shared(int[] tiles, int[] other) {
+		int count = 0;
+		for (int i = 0; i < tiles.length; i++) {
+			count += tiles[i] == other[i] ? 1 : 0;
+		}
+		return count;
+	}
+}